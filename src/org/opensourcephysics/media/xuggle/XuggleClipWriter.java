@@ -0,0 +1,518 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensourcephysics.controls.OSPLog;
+
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IContainerFormat;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Writes a frame range of a XuggleVideo to a new file without a full
+ * transcode. The packets of GOPs that lie wholly inside the range are copied
+ * into the new container unchanged. Only the boundary frames, before the
+ * first key frame in the range and after the last one when the range ends
+ * mid-GOP, are decoded and re-encoded, both boundaries in parallel with the
+ * copy. The frame index locates the key frames.
+ * <p>
+ * The re-encoded frames use the source codec and frame size. No encoder is
+ * opened for a pure stream copy. When the codec's global header (extradata)
+ * cannot be carried over to the output container, copied packets would not
+ * play, so the whole range is re-encoded with a header of its own. Boundary
+ * frames are only re-encoded for codecs without a global header: otherwise
+ * the new encoder's header would not match the copied packets, so a range
+ * that does not start and end on GOP boundaries is re-encoded whole.
+ */
+public class XuggleClipWriter {
+
+	// key frame interval of full re-encodes when the source does not report one
+	static final int DEFAULT_GOP = 12;
+
+	private XuggleVideo video;
+	private int copiedPackets, encodedFrames;
+
+  /**
+   * Creates a clip writer for a video.
+   *
+   * @param video the video
+   */
+  public XuggleClipWriter(XuggleVideo video) {
+  	this.video = video;
+  }
+
+  /**
+   * Writes the clip range, from the start frame to the end frame, of the video.
+   *
+   * @param path the path of the new file; its extension determines the container
+   * @throws IOException
+   */
+  public void trim(String path) throws IOException {
+  	write(path, video.getStartFrameNumber(), video.getEndFrameNumber());
+  }
+
+  /**
+   * Writes a frame range of the video.
+   *
+   * @param path the path of the new file; its extension determines the container
+   * @param start the first frame
+   * @param end the last frame
+   * @throws IOException
+   */
+  public void write(String path, int start, int end) throws IOException {
+  	final XuggleFrameIndex index = video.index;
+  	if (start<0 || end>=index.getFrameCount() || start>end) {
+  		throw new IOException("invalid frame range "+start+"-"+end); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	copiedPackets = encodedFrames = 0;
+  	long t0 = System.currentTimeMillis();
+  	final long startTimeStamp = index.getTimeStamp(start);
+  	String name = (String)video.getProperty("name"); //$NON-NLS-1$
+  	XuggleDecoder decoder = video.source.createDecoder(name);
+  	IContainer out = null;
+  	IStreamCoder outCoder = null;
+  	List<int[]> boundaries = new ArrayList<int[]>();
+  	List<Future<List<IPacket>>> encoded = new ArrayList<Future<List<IPacket>>>();
+  	int next = 0;
+  	try {
+  		out = XuggleNatives.track(IContainer.make());
+  		if (out.open(path, IContainer.Type.WRITE, null)<0) {
+  			throw new IOException("unable to open "+path); //$NON-NLS-1$
+  		}
+  		IContainerFormat format = out.getContainerFormat();
+  		boolean globalHeader = format.getOutputFlag(IContainerFormat.Flags.FLAG_GLOBALHEADER);
+  		format.delete();
+  		// a stream copy of the source coder: no encoder is opened
+  		outCoder = XuggleNatives.track(IStreamCoder.make(IStreamCoder.Direction.ENCODING, decoder.videoCoder));
+  		outCoder.setTimeBase(decoder.timebase);
+  		// copy the whole GOPs in the range: from the first key frame in the range
+  		int copyStart = index.getKeyRunStart(start)==start? start: index.getNextKeyRunStart(start);
+  		// to the frame before the last key frame unless the range ends with its GOP
+  		int copyEnd = index.getNextKeyRunStart(end)==end+1? end: index.getKeyRunStart(end)-1;
+  		// the boundary frames are re-encoded
+  		if (copyStart>copyEnd) {
+  			boundaries.add(new int[] {start, end});
+  		}
+  		else {
+  			if (start<copyStart) boundaries.add(new int[] {start, copyStart-1});
+  			if (copyEnd<end) boundaries.add(new int[] {copyEnd+1, end});
+  		}
+  		if (!canCopy(decoder, outCoder, globalHeader)
+  				// a new encoder makes its own global header, which would change
+  				// the decoder configuration where re-encoded and copied packets meet
+  				|| (decoder.videoCoder.getExtraDataSize()>0 && !boundaries.isEmpty())) {
+  			OSPLog.fine("packets of "+name+" cannot be copied to "+path+", re-encoding"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  			boundaries.clear();
+  			XuggleNatives.release(outCoder);
+  			outCoder = null;
+  			encodeAll(decoder, out, start, end, startTimeStamp, globalHeader);
+  			encodedFrames = end-start+1;
+  		}
+  		else {
+	  		long clipStartTimeStamp = startTimeStamp;
+	  		if (copyStart<=copyEnd) {
+	  			if (!decoder.seekKeyPacket(copyStart)) {
+	  				throw new IOException("key packet for frame "+copyStart+" not found"); //$NON-NLS-1$ //$NON-NLS-2$
+	  			}
+	  			// delay the whole clip by the decode delay of the first copied packet
+	  			// so that no dts is negative
+	  			clipStartTimeStamp -= Math.max(0, decoder.packet.getPts()-decoder.packet.getDts());
+	  		}
+	  		final long offset = clipStartTimeStamp;
+	  		// re-encode the boundary frames in parallel while the whole GOPs are copied
+	  		if (!boundaries.isEmpty()) {
+		  		ExecutorService executor = Executors.newFixedThreadPool(boundaries.size());
+		  		for (final int[] range: boundaries) {
+		  			encoded.add(executor.submit(new Callable<List<IPacket>>() {
+		  				public List<IPacket> call() throws IOException {
+		  					return encodeFrames(range[0], range[1], offset);
+		  				}
+		  			}));
+		  		}
+		  		executor.shutdown();
+	  		}
+	  		XuggleNatives.release(XuggleNatives.track(out.addNewStream(outCoder)));
+	  		if (out.writeHeader()<0) {
+	  			throw new IOException("unable to write header of "+path); //$NON-NLS-1$
+	  		}
+	  		if (start<copyStart || copyStart>copyEnd) {
+	  			writePackets(out, encoded.get(next++));
+	  		}
+	  		if (copyStart<=copyEnd) {
+	  			copyPackets(decoder, out, copyEnd, offset);
+	  		}
+	  		if (next<encoded.size()) {
+	  			writePackets(out, encoded.get(next++));
+	  		}
+	  		for (int[] range: boundaries) {
+	  			encodedFrames += range[1]-range[0]+1;
+	  		}
+  		}
+  		out.writeTrailer();
+  	} finally {
+  		// wait for boundaries that were not written and discard their packets
+  		for (int i = next; i < encoded.size(); i++) {
+				try {
+					releasePackets(encoded.get(i).get());
+				} catch (Exception ex) {
+				}
+  		}
+  		XuggleNatives.release(outCoder);
+  		if (out!=null) {
+  			out.close();
+  			XuggleNatives.release(out);
+  		}
+  		decoder.dispose();
+  	}
+  	OSPLog.fine("wrote frames "+start+"-"+end+" to "+path+": "+copiedPackets+" packets copied, " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+  			+encodedFrames+" frames encoded in "+(System.currentTimeMillis()-t0)+" ms"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Determines if the packets of the source stream can be copied to the
+   * output. Codecs configured by a global header (extradata, eg H.264 and
+   * MPEG-4 in MP4 and MOV) need it carried over to the output coder, and
+   * their packets can only be copied to containers that store global
+   * headers; codecs without one can only be copied to containers that do not.
+   *
+   * @param decoder the decoder
+   * @param outCoder the output stream coder copied from the source coder
+   * @param globalHeader true if the output container stores global headers
+   * @return true if a stream copy will play
+   */
+  private boolean canCopy(XuggleDecoder decoder, IStreamCoder outCoder, boolean globalHeader) {
+  	int extraData = decoder.videoCoder.getExtraDataSize();
+  	if (extraData>0) {
+  		return globalHeader && outCoder.getExtraDataSize()==extraData;
+  	}
+  	return !globalHeader;
+  }
+
+  /**
+   * Decodes and re-encodes a whole frame range into the output, with an
+   * encoder that writes the global header when the container needs one.
+   *
+   * @param decoder the decoder
+   * @param out the output container, open but without a header
+   * @param start the first frame
+   * @param end the last frame
+   * @param startTimeStamp the source timestamp of the first frame of the clip
+   * @param globalHeader true if the output container stores global headers
+   * @throws IOException
+   */
+  private void encodeAll(XuggleDecoder decoder, IContainer out, int start, int end,
+  		long startTimeStamp, boolean globalHeader) throws IOException {
+  	int gop = decoder.videoCoder.getNumPicturesInGroupOfPictures();
+  	IStreamCoder encoder = makeEncoder(decoder, gop>0? gop: DEFAULT_GOP);
+  	List<IPacket> packets = new ArrayList<IPacket>();
+  	try {
+  		if (globalHeader) {
+  			encoder.setFlag(IStreamCoder.Flags.FLAG_GLOBAL_HEADER, true);
+  		}
+  		if (encoder.open()<0) {
+  			throw new IOException("no encoder for the codec of "+video.getProperty("name")); //$NON-NLS-1$ //$NON-NLS-2$
+  		}
+  		XuggleNatives.release(XuggleNatives.track(out.addNewStream(encoder)));
+  		if (out.writeHeader()<0) {
+  			throw new IOException("unable to write header"); //$NON-NLS-1$
+  		}
+  		double microsPerUnit = decoder.timebase.getValue()*1000000;
+  		for (int i = start; i <= end; i++) {
+  			if (!decoder.loadPicture(i)) {
+  				throw new IOException("unable to decode frame "+i); //$NON-NLS-1$
+  			}
+  			IVideoPicture picture = decoder.picture;
+  			picture.setTimeStamp(Math.round((decoder.index.getTimeStamp(i)-startTimeStamp)*microsPerUnit));
+  			encode(encoder, picture, packets);
+  			writeAndRelease(out, packets);
+  		}
+  		// flush delayed frames
+  		while (encode(encoder, null, packets)) {
+  			writeAndRelease(out, packets);
+  		}
+  	} finally {
+  		releasePackets(packets);
+  		encoder.close();
+  		XuggleNatives.release(encoder);
+  	}
+  }
+
+  /**
+   * Writes packets to the output and deletes them.
+   *
+   * @param out the output container
+   * @param packets the packets
+   * @throws IOException
+   */
+  private void writeAndRelease(IContainer out, List<IPacket> packets) throws IOException {
+  	try {
+  		for (IPacket packet: packets) {
+  			writePacket(out, packet);
+  		}
+  	} finally {
+  		releasePackets(packets);
+  	}
+  }
+
+  /**
+   * Waits for re-encoded packets and writes them to the output.
+   *
+   * @param out the output container
+   * @param result the result of a boundary encoding task
+   * @throws IOException
+   */
+  private void writePackets(IContainer out, Future<List<IPacket>> result) throws IOException {
+  	List<IPacket> packets;
+  	try {
+  		packets = result.get();
+  	} catch (InterruptedException ex) {
+  		throw new IOException("clip writing interrupted"); //$NON-NLS-1$
+  	} catch (ExecutionException ex) {
+  		if (ex.getCause() instanceof IOException) {
+  			throw (IOException)ex.getCause();
+  		}
+  		throw new IOException("unable to encode boundary frames: "+ex.getCause()); //$NON-NLS-1$
+  	}
+  	writeAndRelease(out, packets);
+  }
+
+  /**
+   * Deletes re-encoded packets.
+   *
+   * @param packets the packets
+   */
+  private void releasePackets(List<IPacket> packets) {
+  	for (IPacket packet: packets) {
+  		XuggleNatives.release(packet);
+  	}
+  	packets.clear();
+  }
+
+  /**
+   * Gets the number of packets copied by the last write.
+   *
+   * @return the copied packet count
+   */
+  public int getCopiedPacketCount() {
+  	return copiedPackets;
+  }
+
+  /**
+   * Gets the number of frames re-encoded by the last write.
+   *
+   * @return the encoded frame count
+   */
+  public int getEncodedFrameCount() {
+  	return encodedFrames;
+  }
+
+  /**
+   * Copies the packets of whole GOPs into the output, from the key packet at
+   * which the decoder is positioned to the next key packet after the last
+   * frame. Packets are copied in decode order, so B-frames in the range that
+   * follow a reference packet of a later frame are copied too.
+   *
+   * @param decoder the decoder, positioned at the key packet of the first frame
+   * @param out the output container
+   * @param end the last frame, which must end a key packet run
+   * @param offset the source timestamp subtracted from pts and dts
+   * @throws IOException
+   */
+  private void copyPackets(XuggleDecoder decoder, IContainer out, int end,
+  		long offset) throws IOException {
+  	IPacket packet = decoder.packet;
+  	do {
+  		if (!decoder.isVideoPacket(packet)) continue;
+  		if (packet.isKeyPacket()
+  				&& decoder.index.getFrameNumber(packet.getTimeStamp())>end) break;
+  		packet.setPts(packet.getPts()-offset);
+  		packet.setDts(packet.getDts()-offset);
+  		packet.setTimeBase(decoder.timebase);
+  		writePacket(out, packet);
+  		copiedPackets++;
+  	} while (decoder.readPacket());
+  }
+
+  /**
+   * Decodes and re-encodes a frame range with a new decoder and a new coder
+   * for the source codec. Called on a worker thread.
+   *
+   * @param first the first frame
+   * @param last the last frame
+   * @param startTimeStamp the source timestamp at which the clip starts
+   * @return the encoded packets
+   * @throws IOException
+   */
+  private List<IPacket> encodeFrames(int first, int last, long startTimeStamp)
+  		throws IOException {
+  	XuggleDecoder decoder = video.source.createDecoder((String)video.getProperty("name")); //$NON-NLS-1$
+  	try {
+  		return encodeFrames(decoder, first, last, startTimeStamp);
+  	} finally {
+  		decoder.dispose();
+  	}
+  }
+
+  /**
+   * Decodes and re-encodes a frame range with a new coder for the source codec.
+   *
+   * @param decoder the decoder
+   * @param first the first frame
+   * @param last the last frame
+   * @param startTimeStamp the source timestamp at which the clip starts
+   * @return the encoded packets
+   * @throws IOException
+   */
+  private List<IPacket> encodeFrames(XuggleDecoder decoder, int first, int last,
+  		long startTimeStamp) throws IOException {
+  	List<IPacket> packets = new ArrayList<IPacket>();
+  	// one key frame at the start of the range
+  	IStreamCoder encoder = makeEncoder(decoder, last-first+1);
+  	double microsPerUnit = decoder.timebase.getValue()*1000000;
+  	boolean complete = false;
+  	try {
+  		if (encoder.open()<0) {
+  			throw new IOException("unable to open encoder"); //$NON-NLS-1$
+  		}
+  		for (int i = first; i <= last; i++) {
+  			if (!decoder.loadPicture(i)) {
+  				throw new IOException("unable to decode frame "+i); //$NON-NLS-1$
+  			}
+  			IVideoPicture picture = decoder.picture;
+  			picture.setTimeStamp(Math.round((decoder.index.getTimeStamp(i)-startTimeStamp)*microsPerUnit));
+  			picture.setKeyFrame(i==first);
+  			encode(encoder, picture, packets);
+  		}
+  		// flush delayed frames
+  		while (encode(encoder, null, packets)) {}
+  		complete = true;
+  	} finally {
+  		encoder.close();
+  		XuggleNatives.release(encoder);
+  		if (!complete) {
+  			releasePackets(packets);
+  		}
+  	}
+  	return packets;
+  }
+
+  /**
+   * Makes an unopened encoder for the source codec and frame size.
+   *
+   * @param decoder the decoder
+   * @param gop the number of frames in each group of pictures
+   * @return the encoder
+   */
+  private IStreamCoder makeEncoder(XuggleDecoder decoder, int gop) {
+  	IStreamCoder encoder = XuggleNatives.track(IStreamCoder.make(IStreamCoder.Direction.ENCODING, decoder.videoCoder));
+  	IRational timebase = getEncoderTimeBase(decoder);
+  	encoder.setTimeBase(timebase);
+  	if (timebase!=decoder.timebase) {
+  		// the encoder keeps its own reference
+  		XuggleNatives.release(timebase);
+  	}
+  	encoder.setNumPicturesInGroupOfPictures(gop);
+  	if (encoder.getBitRate()<=0) {
+  		encoder.setBitRate(decoder.videoCoder.getBitRate()>0?
+  				decoder.videoCoder.getBitRate(): 4000000);
+  	}
+  	return encoder;
+  }
+
+  /**
+   * Gets a timebase for re-encoding: the stream timebase, or the inverse frame
+   * rate if the stream timebase is too fine for encoders.
+   *
+   * @param decoder the decoder
+   * @return the timebase, to be released by the caller unless the stream timebase
+   */
+  private IRational getEncoderTimeBase(XuggleDecoder decoder) {
+  	if (decoder.timebase.getDenominator()<=65535) { // maximum timebase = 2^16 - 1
+  		return decoder.timebase;
+  	}
+  	IRational frameRate = decoder.stream.getFrameRate();
+  	try {
+  		if (frameRate!=null && frameRate.getNumerator()>0) {
+  			return XuggleNatives.track(IRational.make(frameRate.getDenominator(), frameRate.getNumerator()));
+  		}
+  		return decoder.timebase;
+  	} finally {
+  		if (frameRate!=null) {
+  			frameRate.delete();
+  		}
+  	}
+  }
+
+  /**
+   * Encodes a picture and keeps the packet if complete.
+   *
+   * @param encoder the encoder
+   * @param picture the picture, or null to flush
+   * @param packets the list of packets
+   * @return true if a packet was completed
+   * @throws IOException
+   */
+  private boolean encode(IStreamCoder encoder, IVideoPicture picture, List<IPacket> packets)
+  		throws IOException {
+  	IPacket packet = XuggleNatives.track(IPacket.make());
+  	if (encoder.encodeVideo(packet, picture, 0)<0) {
+  		XuggleNatives.release(packet);
+  		throw new IOException("could not encode video"); //$NON-NLS-1$
+  	}
+  	if (!packet.isComplete()) {
+  		XuggleNatives.release(packet);
+  		return false;
+  	}
+  	packets.add(packet);
+  	return true;
+  }
+
+  /**
+   * Writes a packet to the single video stream of the output.
+   *
+   * @param out the output container
+   * @param packet the packet
+   * @throws IOException
+   */
+  private void writePacket(IContainer out, IPacket packet) throws IOException {
+  	packet.setStreamIndex(0);
+  	if (out.writePacket(packet, true)<0) {
+  		throw new IOException("could not write packet"); //$NON-NLS-1$
+  	}
+  }
+
+}
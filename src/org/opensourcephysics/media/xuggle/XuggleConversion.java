@@ -0,0 +1,149 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.IVideoResampler;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * The native objects needed to convert decoded pictures of one width, height
+ * and pixel format to BufferedImages: a color space resampler, a BGR24 picture
+ * it resamples into and a BGR24 image converter. They are made once and
+ * reused for every frame. A decoder makes a new conversion when the format of
+ * its decoded pictures changes, eg at a resolution change in a stream.
+ */
+class XuggleConversion implements AutoCloseable {
+
+	// native bytes held by all live conversions
+	private static AtomicLong totalNativeBytes = new AtomicLong();
+
+	private int width, height;
+	private IPixelFormat.Type pixelType;
+	private IVideoResampler resampler;
+	private IVideoPicture bgrPicture;
+	private IConverter converter;
+	private long nativeBytes;
+
+  /**
+   * Gets the native bytes held by all live conversions.
+   *
+   * @return the byte count
+   */
+  static long getTotalNativeBytes() {
+  	return totalNativeBytes.get();
+  }
+
+  /**
+   * Creates a conversion for pictures of the same format as a picture.
+   *
+   * @param picture the picture
+   * @throws IllegalStateException if no resampler can be made for the format
+   * @throws RuntimeException if no converter can be made. Natives already made
+   *   are released first.
+   */
+  XuggleConversion(IVideoPicture picture) {
+  	width = picture.getWidth();
+  	height = picture.getHeight();
+  	pixelType = picture.getPixelType();
+  	if (pixelType!=IPixelFormat.Type.BGR24) {
+      resampler = XuggleNatives.track(IVideoResampler.make(
+      		width, height, IPixelFormat.Type.BGR24,
+      		width, height, pixelType));
+      if (resampler==null) {
+      	throw new IllegalStateException("Could not create color space resampler"); //$NON-NLS-1$
+      }
+      bgrPicture = XuggleNatives.track(IVideoPicture.make(IPixelFormat.Type.BGR24, width, height));
+      nativeBytes = width*height*3L;
+  	}
+		try {
+			ConverterFactory.Type type = ConverterFactory.findRegisteredConverter(
+					ConverterFactory.XUGGLER_BGR_24);
+			converter = ConverterFactory.createConverter(type.getDescriptor(),
+					bgrPicture==null? picture: bgrPicture);
+		} catch (RuntimeException ex) {
+			XuggleNatives.release(resampler);
+			XuggleNatives.release(bgrPicture);
+			resampler = null;
+			bgrPicture = null;
+			throw ex;
+		}
+		totalNativeBytes.addAndGet(nativeBytes);
+  }
+
+  /**
+   * Determines if this conversion can convert a picture.
+   *
+   * @param picture the picture
+   * @return true if the picture has the width, height and pixel format of this conversion
+   */
+  boolean accepts(IVideoPicture picture) {
+  	return picture.getWidth()==width && picture.getHeight()==height
+  			&& picture.getPixelType()==pixelType;
+  }
+
+  /**
+   * Converts a picture to a BufferedImage.
+   *
+   * @param picture the picture
+   * @return the image, or null if unable to resample
+   */
+  BufferedImage toImage(IVideoPicture picture) {
+  	if (resampler!=null) {
+      if (resampler.resample(bgrPicture, picture)<0) {
+      	return null;
+      }
+      picture = bgrPicture;
+  	}
+  	return converter.toImage(picture);
+  }
+
+  /**
+   * Deletes the native objects of this conversion.
+   */
+  public void close() {
+  	if (converter!=null) {
+  		converter.delete();
+  		converter = null;
+  	}
+		XuggleNatives.release(resampler);
+		resampler = null;
+		XuggleNatives.release(bgrPicture);
+		bgrPicture = null;
+		totalNativeBytes.addAndGet(-nativeBytes);
+		nativeBytes = 0;
+  }
+
+  @Override
+  public String toString() {
+  	return width+"x"+height+" "+pixelType; //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+}
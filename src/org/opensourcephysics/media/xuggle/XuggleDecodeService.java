@@ -0,0 +1,374 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * A service that opens, indexes and extracts frames from many videos. Jobs
+ * wait in an unbounded queue that holds no threads, and a fixed number of
+ * worker threads run them. Each worker opens one headless XuggleVideo at a
+ * time, with no progress dialog or stall timer. The worker count therefore
+ * also bounds the native decoding contexts in use. Thousands of queued
+ * videos cost only their queue entries. The service reports queue depth and
+ * per-job and mean latency.
+ */
+public class XuggleDecodeService implements AutoCloseable {
+
+	private ThreadPoolExecutor executor;
+	private AtomicBoolean stopped = new AtomicBoolean();
+	private Set<Job<?>> runningJobs = Collections.newSetFromMap(new ConcurrentHashMap<Job<?>, Boolean>());
+	private AtomicLong submitted = new AtomicLong();
+	private AtomicLong completed = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong queueNanos = new AtomicLong();
+	private AtomicLong runNanos = new AtomicLong();
+	private AtomicLong maxLatencyNanos = new AtomicLong();
+
+  /**
+   * Creates a service with one worker per available processor.
+   */
+  public XuggleDecodeService() {
+  	this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a service with a specified number of workers.
+   *
+   * @param workers the maximum number of videos open at once
+   */
+  public XuggleDecodeService(int workers) {
+  	workers = Math.max(1, workers);
+  	final AtomicInteger count = new AtomicInteger();
+  	executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+  			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "XuggleDecodeService "+count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+  	});
+  }
+
+  /**
+   * Submits a job that opens a video, runs a task on it and closes it.
+   *
+   * @param path the path or URL of the video
+   * @param task the task
+   * @return the job
+   */
+  public <T> Job<T> submit(String path, Task<T> task) {
+  	Job<T> job = new Job<T>(path, task);
+  	submitted.incrementAndGet();
+  	executor.execute(job);
+  	return job;
+  }
+
+  /**
+   * Submits a job that opens and indexes a video and gets its frame start times.
+   *
+   * @param path the path or URL of the video
+   * @return the job, which completes with the frame times in milliseconds
+   */
+  public Job<double[]> submitFrameTimes(String path) {
+  	return submit(path, new Task<double[]>() {
+			public double[] run(XuggleVideo video) {
+				double[] times = new double[video.getFrameCount()];
+				for (int i = 0; i < times.length; i++) {
+					times[i] = video.getFrameTime(i);
+				}
+				return times;
+			}
+  	});
+  }
+
+  /**
+   * Submits a job that opens a video and extracts the images of frames.
+   *
+   * @param path the path or URL of the video
+   * @param frames the frame numbers
+   * @return the job, which completes with the images (null where unable to decode)
+   */
+  public Job<BufferedImage[]> submitExtract(String path, final int[] frames) {
+  	return submit(path, new Task<BufferedImage[]>() {
+			public BufferedImage[] run(XuggleVideo video) {
+				BufferedImage[] images = new BufferedImage[frames.length];
+				for (int i = 0; i < frames.length; i++) {
+					if (isStopping()) {
+						throw new CancellationException("decode service closed"); //$NON-NLS-1$
+					}
+					images[i] = video.getImage(frames[i]);
+				}
+				return images;
+			}
+  	});
+  }
+
+  /**
+   * Determines if this service is closing. Long tasks should check this
+   * between frames and stop when it is true.
+   *
+   * @return true if closing
+   */
+  public boolean isStopping() {
+  	return stopped.get();
+  }
+
+  /**
+   * Gets the number of jobs waiting for a worker.
+   *
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+  	return executor.getQueue().size();
+  }
+
+  /**
+   * Gets the number of jobs running.
+   *
+   * @return the active job count
+   */
+  public int getActiveCount() {
+  	return executor.getActiveCount();
+  }
+
+  /**
+   * Gets the number of jobs submitted.
+   *
+   * @return the submitted job count
+   */
+  public long getSubmittedCount() {
+  	return submitted.get();
+  }
+
+  /**
+   * Gets the number of jobs finished, successfully or not.
+   *
+   * @return the finished job count
+   */
+  public long getCompletedCount() {
+  	return completed.get();
+  }
+
+  /**
+   * Gets the number of jobs that failed.
+   *
+   * @return the failed job count
+   */
+  public long getFailedCount() {
+  	return failed.get();
+  }
+
+  /**
+   * Gets the mean time finished jobs waited in the queue.
+   *
+   * @return the mean queue time in milliseconds
+   */
+  public double getMeanQueueTime() {
+  	long n = completed.get();
+  	return n==0? 0: queueNanos.get()/1000000.0/n;
+  }
+
+  /**
+   * Gets the mean time finished jobs took to run.
+   *
+   * @return the mean run time in milliseconds
+   */
+  public double getMeanRunTime() {
+  	long n = completed.get();
+  	return n==0? 0: runNanos.get()/1000000.0/n;
+  }
+
+  /**
+   * Gets the longest latency, from submission to completion, of a finished job.
+   *
+   * @return the maximum latency in milliseconds
+   */
+  public double getMaxLatency() {
+  	return maxLatencyNanos.get()/1000000.0;
+  }
+
+  /**
+   * Closes this service. Queued jobs are cancelled and running jobs are
+   * asked to stop, then their videos are closed. No thread is interrupted,
+   * since an interrupt closes the file channel a decoder is reading.
+   */
+  public void close() {
+  	stopped.set(true);
+  	executor.shutdown();
+  	List<Runnable> queued = new ArrayList<Runnable>();
+  	executor.getQueue().drainTo(queued);
+  	for (Runnable r: queued) {
+  		((Job<?>)r).cancel(false);
+  	}
+  	for (Job<?> job: runningJobs) {
+  		job.canceled.set(true);
+  	}
+  	try {
+  		executor.awaitTermination(1, TimeUnit.MINUTES);
+  	} catch (InterruptedException ex) {
+  	}
+  	OSPLog.finer("Xuggle decode service closed after "+completed+" jobs, mean queue " //$NON-NLS-1$ //$NON-NLS-2$
+  			+getMeanQueueTime()+" ms, mean run "+getMeanRunTime()+" ms"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * A task run on an open video by the decode service.
+   */
+  public interface Task<T> {
+
+    /**
+     * Runs this task.
+     *
+     * @param video the open video, closed when the task returns
+     * @return the result
+     * @throws Exception
+     */
+    public T run(XuggleVideo video) throws Exception;
+
+  }
+
+  /**
+   * A submitted job with its latency.
+   */
+  public class Job<T> extends FutureTask<T> {
+
+  	private String path;
+  	private AtomicBoolean canceled;
+  	private long submitTime = System.nanoTime();
+  	private volatile long startTime, endTime;
+
+  	private Job(final String path, final Task<T> task) {
+  		this(path, task, new AtomicBoolean());
+  	}
+
+  	private Job(final String path, final Task<T> task, final AtomicBoolean canceled) {
+  		super(new Callable<T>() {
+				public T call() throws Exception {
+					XuggleVideo video = new XuggleVideo(path, false, null, canceled);
+					try {
+						video.setSmoothPlay(false);
+						return task.run(video);
+					} finally {
+						video.close();
+					}
+				}
+  		});
+  		this.path = path;
+  		this.canceled = canceled;
+  	}
+
+    /**
+     * Gets the path of the video.
+     *
+     * @return the path
+     */
+  	public String getPath() {
+  		return path;
+  	}
+
+    /**
+     * Gets the time this job waited in the queue.
+     *
+     * @return the queue time in milliseconds, or the time so far if not started
+     */
+  	public double getQueueTime() {
+  		long start = startTime;
+  		return ((start==0? System.nanoTime(): start)-submitTime)/1000000.0;
+  	}
+
+    /**
+     * Gets the time this job took to run.
+     *
+     * @return the run time in milliseconds, or 0 if not finished
+     */
+  	public double getRunTime() {
+  		long start = startTime, end = endTime;
+  		return end==0? 0: (end-start)/1000000.0;
+  	}
+
+  	@Override
+  	public boolean cancel(boolean mayInterruptIfRunning) {
+  		// stops the frame scan of a video being opened; never interrupts,
+  		// since an interrupt closes the file channel a decoder is reading
+  		canceled.set(true);
+  		return super.cancel(false);
+  	}
+
+  	@Override
+  	public void run() {
+  		if (isDone()) return; // cancelled while queued
+  		// registered before the stop check, so close() either sees this
+  		// job running or this job sees the service stopping
+  		runningJobs.add(this);
+  		if (stopped.get()) {
+  			runningJobs.remove(this);
+  			cancel(false);
+  			return;
+  		}
+  		startTime = System.nanoTime();
+  		try {
+  			super.run();
+  		} finally {
+  			runningJobs.remove(this);
+  		}
+  		endTime = System.nanoTime();
+  		queueNanos.addAndGet(startTime-submitTime);
+  		runNanos.addAndGet(endTime-startTime);
+  		long latency = endTime-submitTime;
+  		long max = maxLatencyNanos.get();
+  		while (latency>max && !maxLatencyNanos.compareAndSet(max, latency)) {
+  			max = maxLatencyNanos.get();
+  		}
+  		completed.incrementAndGet();
+  	}
+
+  	@Override
+  	protected void setException(Throwable ex) {
+  		failed.incrementAndGet();
+  		OSPLog.fine("decode job failed for "+path+": "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  		super.setException(ex);
+  	}
+
+  }
+
+}
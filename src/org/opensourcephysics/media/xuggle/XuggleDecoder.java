@@ -0,0 +1,586 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.opensourcephysics.controls.OSPLog;
+
+import com.xuggle.ferry.IBuffer;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * A Xuggle decoding context: an open container with its video stream coder,
+ * packet, picture and image conversion. A decoder is positioned somewhere in
+ * the stream, so it is used by one thread at a time. XuggleVideo leases
+ * decoders from its XuggleSource rather than owning them. Closing a decoder
+ * deletes its native objects.
+ */
+class XuggleDecoder implements AutoCloseable {
+
+	IContainer container;
+  int streamIndex = -1;
+  IStreamCoder videoCoder;
+  IPacket packet;
+  IVideoPicture picture;
+  IStream stream;
+  IRational timebase;
+  XuggleConversion conversion;
+  XuggleFrameIndex index;
+  private XuggleSource source;
+
+  /**
+   * Creates a decoder for a source.
+   *
+   * @param source the source
+   */
+  XuggleDecoder(XuggleSource source) {
+  	this.source = source;
+  }
+
+  /**
+   * Opens the container and video decoder.
+   *
+   * @param fileName the video name used in error messages
+   * @throws IOException
+   */
+	@SuppressWarnings("deprecation")
+	void open(String fileName) throws IOException {
+  	XuggleNatives.opened(this);
+  	container = XuggleNatives.track(IContainer.make());
+  	if (openContainer() < 0) {
+			dispose();
+	    throw new IOException("unable to open "+fileName); //$NON-NLS-1$
+  	}
+
+    // find the first video stream in the container
+    for (int i = 0; i < container.getNumStreams(); i++) {
+      IStream nextStream = XuggleNatives.track(container.getStream(i));
+      // get the pre-configured decoder that can decode this stream
+      IStreamCoder coder = XuggleNatives.track(nextStream.getStreamCoder());
+      // get the type of stream from the coder's codec type
+      if (coder.getCodecType().equals(ICodec.Type.CODEC_TYPE_VIDEO)) {
+      	stream = nextStream;
+      	streamIndex = i;
+      	videoCoder = coder;
+      	timebase = XuggleNatives.track(stream.getTimeBase().copy());
+      	break;
+      }
+      XuggleNatives.release(coder);
+      XuggleNatives.release(nextStream);
+    }
+
+    // check that a video stream was found
+    if (streamIndex == -1) {
+			dispose();
+      throw new IOException("no video stream found in "+fileName); //$NON-NLS-1$
+    }
+
+    // check that coder opens
+    if (videoCoder.open() < 0) {
+			dispose();
+      throw new IOException("unable to open video decoder for "+fileName); //$NON-NLS-1$
+    }
+
+    picture = XuggleNatives.track(IVideoPicture.make(videoCoder.getPixelType(),
+        videoCoder.getWidth(), videoCoder.getHeight()));
+  	packet = XuggleNatives.track(IPacket.make());
+  }
+
+  /**
+   * Opens the container for reading, preferably through the input.
+   *
+   * @return a negative value if failed
+   * @throws IOException
+   */
+	private int openContainer() throws IOException {
+		XuggleInput input = source.getInput();
+		String url = input==null? null: input.getURL();
+		if (url!=null && container.open(url, IContainer.Type.READ, null) >= 0) {
+			return 0;
+		}
+  	if (source.isLocal()) {  // random access file handles non-ascii unicode characters
+	  	RandomAccessFile raf = new RandomAccessFile(source.getPath(), "r"); //$NON-NLS-1$
+	    return container.open(raf, IContainer.Type.READ, null);
+  	}
+  	return container.open(source.getPath(), IContainer.Type.READ, null);
+	}
+
+  /**
+   * Disposes of this decoder and deletes its native objects.
+   */
+  void dispose() {
+    if (videoCoder!=null) {
+			videoCoder.close();
+			XuggleNatives.release(videoCoder);
+			videoCoder = null;
+    }
+		XuggleNatives.release(stream);
+		stream = null;
+		XuggleNatives.release(timebase);
+		timebase = null;
+		XuggleNatives.release(picture);
+		picture = null;
+		if (conversion!=null) {
+			conversion.close();
+			conversion = null;
+		}
+		XuggleNatives.release(packet);
+		packet = null;
+    if (container!=null) {
+			container.close();
+			XuggleNatives.release(container);
+			container = null;
+	  }
+    XuggleNatives.closed(this);
+  }
+
+  /**
+   * Closes this decoder. Equivalent to dispose().
+   */
+  public void close() {
+  	dispose();
+  }
+
+  /**
+   * Determines if this decoder can reach a frame by stepping forward
+   * from its current position, ie without a seek.
+   *
+   * @param frameNumber the frame number
+   * @return true if no seek is needed
+   */
+  boolean isPositionedFor(int frameNumber) {
+  	if (packet==null || !isVideoPacket(packet)) return false;
+		long currentTS = packet.getTimeStamp();
+		return currentTS>=index.getKeyTimeStamp(frameNumber)
+				&& currentTS<=index.getTimeStamp(frameNumber);
+  }
+
+  /**
+   * Gets the BufferedImage for the current picture.
+   *
+   * @return the image, or null if unable to resample
+   */
+  BufferedImage getBufferedImage() {
+  	return getBufferedImage(picture);
+  }
+
+  /**
+   * Reloads the current video.
+   *
+   * @throws IOException
+   */
+  @SuppressWarnings("deprecation")
+	void reload() throws IOException {
+		source.countReload();
+  	container.close();
+		videoCoder.close();
+		XuggleNatives.release(videoCoder);
+		XuggleNatives.release(stream);
+		XuggleNatives.release(container);
+  	container = XuggleNatives.track(IContainer.make());
+  	openContainer();
+  	stream = XuggleNatives.track(container.getStream(streamIndex));
+  	videoCoder = XuggleNatives.track(stream.getStreamCoder());
+    videoCoder.open();
+  }
+
+  /**
+   * Determines if a packet is a key packet.
+   *
+   * @param packet the packet
+   * @return true if packet is a key in the video stream
+   */
+  boolean isKeyPacket(IPacket packet) {
+		if (isVideoPacket(packet)
+				&& packet.isKeyPacket()) {
+			return true;
+		}
+  	return false;
+  }
+
+  /**
+   * Determines if a packet is a video packet.
+   *
+   * @param packet the packet
+   * @return true if packet is in the video stream
+   */
+  boolean isVideoPacket(IPacket packet) {
+		if (packet.getStreamIndex() == streamIndex) {
+			return true;
+		}
+  	return false;
+  }
+
+  /**
+   * Returns the key packet with the specified timestamp.
+   *
+   * @param timestamp the timestamp in stream timebase units
+   * @return the packet, or null if none found
+   */
+  private IPacket getKeyPacket(long timestamp) {
+  	// compare requested timestamp with current packet
+  	long delta = timestamp-packet.getTimeStamp();
+  	// if delta is zero, return packet
+  	if (delta==0) {
+  		return packet;
+  	}
+  	// if delta is positive and short, step forward
+  	IRational timebase = packet.getTimeBase();
+  	int shortTime = timebase.getDenominator(); // one second
+  	if (delta>0 && delta<shortTime) {
+  		while (readPacket()) {
+  			if (isKeyPacket(packet)
+  					&& packet.getTimeStamp() == timestamp) {
+  				return packet;
+  			}
+  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
+  				delta = timestamp-packet.getTimeStamp();
+  				break;
+  			}
+  		}
+  	}
+  	// if key packet position is known, seek directly to it
+  	if (delta!=0 && seekPosition(index.getKeyPosition(timestamp))) {
+  		while (readPacket()) {
+  			if (isVideoPacket(packet)) {
+  				if (packet.isKeyPacket() && packet.getTimeStamp() == timestamp) {
+  					return packet;
+  				}
+  				// landed elsewhere--fall back to timestamp seeks
+  				break;
+  			}
+  		}
+  	}
+  	// if delta is positive and long, seek forward
+  	if (delta>0 && container.seekKeyFrame(streamIndex,
+  			timestamp, timestamp, timestamp, 0)>=0) {
+  		while (readPacket()) {
+  			if (isKeyPacket(packet)
+  					&& packet.getTimeStamp() == timestamp) {
+  				return packet;
+  			}
+  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
+  				delta = timestamp-packet.getTimeStamp();
+  				break;
+  			}
+      }
+  	}
+  	// if delta is negative, seek backward
+  	if (index.getFrameNumber(timestamp)==0) {
+  		resetContainer();
+  		return packet;
+  	}
+  	if (delta<0 && container.seekKeyFrame(streamIndex,
+  			timestamp, timestamp, timestamp, IContainer.SEEK_FLAG_BACKWARDS)>=0) {
+  		while (readPacket()) {
+  			if (isKeyPacket(packet) && isVideoPacket(packet)
+  					&& packet.getTimeStamp() == timestamp) {
+  				return packet;
+  			}
+  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
+  				delta = timestamp-packet.getTimeStamp();
+  				break;
+  			}
+      }
+  	}
+
+  	// if all else fails, reopen container and step forward
+  	resetContainer();
+		while (readPacket()) {
+			if (isKeyPacket(packet)
+					&& packet.getTimeStamp() == timestamp) {
+				return packet;
+			}
+			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
+				break;
+			}
+    }
+
+  	// if still not found, return null
+  	return null;
+  }
+
+  /**
+   * Gets the key packet needed to display a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the packet, or null if none found
+   */
+	private IPacket getKeyPacketForFrame(int frameNumber) {
+		long keyTimeStamp = index.getKeyTimeStamp(frameNumber);
+		return getKeyPacket(keyTimeStamp);
+	}
+
+  /**
+   * Loads the Xuggle picture with all data needed to display a specified frame.
+   *
+   * @param frameNumber the frame number to load
+   * @return true if loaded successfully
+   */
+	boolean loadPicture(int frameNumber) {
+		// check to see if seek is needed
+		long currentTS = packet.getTimeStamp();
+		long targetTS = index.getTimeStamp(frameNumber);
+		long keyTS = index.getKeyTimeStamp(frameNumber);
+		if (currentTS==targetTS && isVideoPacket(packet)) {
+			// frame is already loaded
+			return picture.isComplete();
+		}
+		if (currentTS>=keyTS && currentTS<targetTS) {
+			// no need to seek--just step forward
+			if (loadNextPacket()) {
+				int n = getFrameNumber(packet);
+				while (n > -2 && n < frameNumber) {
+					if (loadNextPacket()) {
+						n = getFrameNumber(packet);
+					}
+					else return false;
+				}
+			}
+			else return false;
+		}
+		else if (getKeyPacketForFrame(frameNumber)!=null) {
+			if (loadPacket(packet)) {
+				int n = getFrameNumber(packet);
+				while (n > -2 && n < frameNumber) {
+					if (loadNextPacket()) {
+						n = getFrameNumber(packet);
+					}
+					else return false;
+				}
+			}
+			else return false;
+		}
+		return picture.isComplete();
+	}
+
+  /**
+   * Loads a frame and passes its raw picture planes to a PictureReader.
+   * The planes are valid only for the duration of the callback.
+   *
+   * @param frameNumber the frame number
+   * @param reader the reader
+   * @return true if the frame was decoded and read
+   */
+	boolean readPicture(int frameNumber, XuggleVideo.PictureReader reader) {
+		int planeCount = XugglePlanes.getPlaneCount(picture.getPixelType());
+		if (!loadPicture(frameNumber) || planeCount==0) {
+			return false;
+		}
+		IBuffer buffer = picture.getData();
+		try {
+			ByteBuffer data = buffer.getByteBuffer(0, picture.getSize());
+			ByteBuffer[] planes = new ByteBuffer[planeCount];
+			int[] lineSizes = new int[planeCount];
+			int offset = 0;
+			for (int i = 0; i < planeCount; i++) {
+				int size = XugglePlanes.getPlaneSize(picture, i);
+				data.limit(offset+size).position(offset);
+				planes[i] = data.slice().asReadOnlyBuffer();
+				lineSizes[i] = picture.getDataLineSize(i);
+				offset += size;
+			}
+			reader.readPicture(frameNumber, picture, planes, lineSizes);
+		} finally {
+			buffer.delete();
+		}
+		return true;
+	}
+
+  /**
+   * Positions the container at the key packet needed to display a specified
+   * frame, without decoding it. The packet is then the current packet.
+   *
+   * @param frameNumber the frame number
+   * @return true if the key packet was found
+   */
+	boolean seekKeyPacket(int frameNumber) {
+		return getKeyPacketForFrame(frameNumber)!=null;
+	}
+
+  /**
+   * Loads the Xuggle picture with the key frame needed to display a specified
+   * frame, without decoding forward to the frame itself.
+   *
+   * @param frameNumber the frame number
+   * @return true if loaded successfully
+   */
+	boolean loadKeyPicture(int frameNumber) {
+		if (getKeyPacketForFrame(frameNumber)==null || !loadPacket(packet)) {
+			return false;
+		}
+		// codecs with a decoding delay need a few more packets
+		while (!picture.isComplete()) {
+			if (!loadNextPacket()) return false;
+		}
+		return true;
+	}
+
+  /**
+   * Gets the frame number for a specified packet.
+   *
+   * @param packet the packet
+   * @return the frame number, or -2 if not a video packet
+   */
+	private int getFrameNumber(IPacket packet) {
+		if (packet.getStreamIndex() != streamIndex)
+			return -2;
+		return index.getFrameNumber(packet.getTimeStamp());
+	}
+
+  /**
+   * Gets the BufferedImage for a specified Xuggle picture.
+   *
+   * @param picture the picture
+   * @return the image, or null if unable to resample
+   */
+	private BufferedImage getBufferedImage(IVideoPicture picture) {
+		// make a new conversion if the picture format has changed
+		if (conversion==null || !conversion.accepts(picture)) {
+			if (conversion!=null) {
+				OSPLog.fine("Xuggle picture format changed from "+conversion //$NON-NLS-1$
+						+" in "+source.getPath()); //$NON-NLS-1$
+				conversion.close();
+				conversion = null;
+			}
+			try {
+				conversion = new XuggleConversion(picture);
+			} catch (IllegalStateException ex) {
+      	OSPLog.warning(ex.getMessage());
+      	return null;
+			}
+		}
+		BufferedImage image = conversion.toImage(picture);
+		if (image==null) {
+    	OSPLog.warning("Could not encode video as BGR24"); //$NON-NLS-1$
+		}
+		return image;
+	}
+
+  /**
+   * Reads the next packet of any stream in the container. The container
+   * cannot be told to skip other streams, so reads of non-video packets are
+   * counted by the source.
+   *
+   * @return true if a packet was read
+   */
+	boolean readPacket() {
+		long t0 = System.nanoTime();
+		if (container.readNextPacket(packet) < 0) {
+			return false;
+		}
+		if (!isVideoPacket(packet)) {
+			source.countNonVideoPacket(packet.getSize(), System.nanoTime()-t0);
+		}
+		return true;
+	}
+
+  /**
+   * Loads the next video packet in the container into the current Xuggle picture.
+   *
+   * @return true if successfully loaded
+   */
+	boolean loadNextPacket() {
+		while (readPacket()) {
+			if (isVideoPacket(packet)) {
+				return loadPacket(packet);
+			}
+    }
+		return false;
+	}
+
+  /**
+   * Loads a video packet into the current Xuggle picture.
+   *
+   * @param packet the packet
+   * @return true if successfully loaded
+   */
+	private boolean loadPacket(IPacket packet) {
+		int offset = 0;
+		int size = packet.getSize();
+    while(offset < size) {
+      // decode the packet into the picture
+      int bytesDecoded = videoCoder.decodeVideo(picture, packet, offset);
+      // check for errors
+      if (bytesDecoded < 0)
+        return false;
+
+      offset += bytesDecoded;
+      if (picture.isComplete()) {
+      	return true;
+      }
+    }
+    return true;
+	}
+
+  /**
+   * Resets the container to the beginning. A timestamp seek is tried first,
+   * then a seek to the byte position of the first video packet, and only if
+   * both fail is the container reloaded.
+   */
+  void resetContainer() {
+    // seek backwards--this will fail for streamed web videos
+    if (container.seekKeyFrame(-1, // stream index -1 ==> seek to microseconds
+        Long.MIN_VALUE, 0, Long.MAX_VALUE,
+        IContainer.SEEK_FLAG_BACKWARDS)>=0) {
+    	loadNextPacket();
+    }
+    else if (seekPosition(index.startPosition)) {
+    	loadNextPacket();
+    }
+    else {
+	    try {
+				reload();
+				loadNextPacket();
+			} catch (IOException e) {
+		  	OSPLog.warning("Container could not be reset"); //$NON-NLS-1$
+			}
+    }
+  }
+
+  /**
+   * Seeks to a byte position recorded during indexing. Byte seeks work for
+   * MPEG program and transport streams where timestamp seeks often fail.
+   *
+   * @param position the byte position of a packet, or -1 if unknown
+   * @return true if the seek succeeded
+   */
+  private boolean seekPosition(long position) {
+  	if (position<0) return false;
+  	return container.seekKeyFrame(streamIndex, position, position, position,
+  			IContainer.SEEK_FLAG_BYTE)>=0;
+  }
+
+}
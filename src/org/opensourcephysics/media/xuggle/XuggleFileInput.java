@@ -0,0 +1,230 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.opensourcephysics.controls.OSPLog;
+
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+
+/**
+ * An input that reads a local video file through a FileChannel. Reads are
+ * made in large aligned blocks that are kept as a read-ahead buffer, so the
+ * many small sequential reads made by Xuggle while indexing and playing
+ * reach the disk only once per block. Alternatively the file can be
+ * memory-mapped.
+ */
+public class XuggleFileInput extends XuggleInput {
+
+	// block alignment of channel reads
+	static final int ALIGNMENT = 64*1024;
+
+	private static int readAheadSize = 1024*1024;
+	private static boolean memoryMapped = false;
+
+	private File file;
+	private boolean mapped;
+
+  /**
+   * Sets the size of the read-ahead buffer used by new inputs.
+   *
+   * @param bytes the buffer size (rounded up to a multiple of 64 KB)
+   */
+  public static void setReadAheadSize(int bytes) {
+  	readAheadSize = Math.max(1, (bytes+ALIGNMENT-1)/ALIGNMENT)*ALIGNMENT;
+  }
+
+  /**
+   * Sets the memory-mapped flag used by new inputs. Files larger than 2 GB
+   * are read through the channel regardless.
+   *
+   * @param map true to memory-map files
+   */
+  public static void setMemoryMapped(boolean map) {
+  	memoryMapped = map;
+  }
+
+  /**
+   * Creates an input for a local file.
+   *
+   * @param path the absolute path of the file
+   */
+  public XuggleFileInput(String path) {
+  	file = new File(path);
+  	mapped = memoryMapped && file.length()<=Integer.MAX_VALUE;
+  }
+
+  /**
+   * Determines if this input memory-maps its file.
+   *
+   * @return true if memory-mapped
+   */
+  public boolean isMemoryMapped() {
+  	return mapped;
+  }
+
+  @Override
+  protected IURLProtocolHandler createHandler() {
+  	return new FileHandler();
+  }
+
+  /**
+   * A handler that reads the file for a single container.
+   */
+  class FileHandler implements IURLProtocolHandler {
+
+  	FileChannel channel;
+  	ByteBuffer buffer; // read-ahead block or mapped file
+  	long bufferStart; // file position of buffer start
+  	long position;
+  	long size;
+
+  	public int open(String url, int flags) {
+  		if (flags!=URL_RDONLY_MODE) {
+  			return -1;
+  		}
+  		try {
+  			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  			size = channel.size();
+  			if (mapped) {
+  				long t0 = System.nanoTime();
+  				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  				countRead(0, System.nanoTime()-t0);
+  				buffer = map;
+  			}
+  			else {
+  				buffer = ByteBuffer.allocateDirect(readAheadSize);
+  				buffer.limit(0);
+  			}
+  			bufferStart = position = 0;
+  			return 0;
+  		} catch (IOException ex) {
+  			OSPLog.warning("unable to open "+file+": "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  			close();
+  			return -1;
+  		}
+  	}
+
+  	public int read(byte[] buf, int size) {
+  		if (channel==null) {
+  			return -1;
+  		}
+  		if (position>=this.size) {
+  			return 0;
+  		}
+  		if (mapped) {
+				long t0 = System.nanoTime();
+  			int n = (int)Math.min(size, this.size-position);
+  			buffer.position((int)position);
+  			buffer.get(buf, 0, n);
+  			// page faults are the device reads of a mapped file
+				countRead(n, System.nanoTime()-t0);
+  			position += n;
+  			return n;
+  		}
+  		if (position<bufferStart || position>=bufferStart+buffer.limit()) {
+  			if (!fill()) {
+  				return -1;
+  			}
+  			if (position>=bufferStart+buffer.limit()) {
+  				return 0;
+  			}
+  		}
+  		buffer.position((int)(position-bufferStart));
+  		int n = Math.min(size, buffer.remaining());
+  		buffer.get(buf, 0, n);
+  		position += n;
+  		return n;
+  	}
+
+  	/**
+  	 * Fills the read-ahead buffer with the aligned block containing the position.
+  	 *
+  	 * @return true if successful
+  	 */
+  	private boolean fill() {
+  		bufferStart = position-(position%ALIGNMENT);
+  		buffer.clear();
+  		try {
+  			long t0 = System.nanoTime();
+  			while (buffer.hasRemaining()) {
+  				int n = channel.read(buffer, bufferStart+buffer.position());
+  				if (n<0) break;
+  			}
+  			countRead(buffer.position(), System.nanoTime()-t0);
+  		} catch (IOException ex) {
+  			OSPLog.warning("unable to read "+file+": "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  			buffer.limit(0);
+  			return false;
+  		}
+  		buffer.flip();
+  		return true;
+  	}
+
+  	public int write(byte[] buf, int size) {
+  		return -1;
+  	}
+
+  	public long seek(long offset, int whence) {
+  		long pos;
+  		switch(whence) {
+  			case SEEK_SET: pos = offset; break;
+  			case SEEK_CUR: pos = position+offset; break;
+  			case SEEK_END: pos = size+offset; break;
+  			case SEEK_SIZE: return size;
+  			default: return -1;
+  		}
+  		if (pos<0) {
+  			return -1;
+  		}
+  		position = pos;
+  		return position;
+  	}
+
+  	public int close() {
+  		buffer = null;
+  		if (channel!=null) {
+  			try {
+  				channel.close();
+  			} catch (IOException ex) {
+  			}
+  			channel = null;
+  		}
+  		return 0;
+  	}
+
+  	public boolean isStreamed(String url, int flags) {
+  		return false;
+  	}
+
+  }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.opensourcephysics.controls.OSPLog;
+import org.opensourcephysics.controls.XML;
+
+/**
+ * A headless tool to export video frames to image or raw files. Frames may be
+ * exported to PNG files, to raw BGR24 files (one per frame) or to a single
+ * BGR24 file holding all exported frames back to back in fixed slots. Many
+ * videos can be exported concurrently.
+ */
+public class XuggleFrameExporter {
+
+	/** Exports each frame to a PNG file */
+	public static final int FORMAT_PNG = 0;
+	/** Exports each frame to a raw BGR24 file */
+	public static final int FORMAT_RAW = 1;
+	/** Exports all frames to a single BGR24 file of fixed-size frame slots */
+	public static final int FORMAT_MAPPED = 2;
+
+	private int format = FORMAT_PNG;
+	private File outputDir = new File("."); //$NON-NLS-1$
+	private int start = 0, end = Integer.MAX_VALUE, step = 1;
+	private double[] times;
+
+  /**
+   * Sets the output format.
+   *
+   * @param format FORMAT_PNG, FORMAT_RAW or FORMAT_MAPPED
+   */
+  public void setFormat(int format) {
+  	this.format = format;
+  }
+
+  /**
+   * Sets the directory to which files are exported.
+   *
+   * @param dir the directory
+   */
+  public void setOutputDirectory(File dir) {
+  	outputDir = dir;
+  }
+
+  /**
+   * Selects a range of frames to export. Frame numbers past the end of a
+   * video are ignored.
+   *
+   * @param start the first frame number
+   * @param end the last frame number
+   * @param step the frame interval (1 to export every frame)
+   */
+  public void setFrames(int start, int end, int step) {
+  	this.start = Math.max(0, start);
+  	this.end = end;
+  	this.step = Math.max(1, step);
+  	times = null;
+  }
+
+  /**
+   * Selects the frames to export by time. Overrides any frame range.
+   *
+   * @param millis the frame times in milliseconds
+   */
+  public void setTimes(double[] millis) {
+  	times = millis;
+  }
+
+  /**
+   * Exports the selected frames of a video.
+   *
+   * @param path the path of the video
+   * @return the export statistics
+   * @throws IOException
+   */
+  public Result export(String path) throws IOException {
+  	long t0 = System.currentTimeMillis();
+  	XuggleVideo video = new XuggleVideo(path, false);
+  	try {
+	  	int[] frames = getFrameNumbers(video);
+	  	String name = XML.stripExtension(XML.getName(path));
+	  	Result result = new Result(path);
+	  	SlotFile slots = null;
+	  	try {
+		  	for (int i = 0; i < frames.length; i++) {
+		  		BufferedImage image = video.getImage(frames[i]);
+		  		if (image==null) continue;
+		  		String frameName = name+"_"+frames[i]; //$NON-NLS-1$
+		  		switch(format) {
+		  			case FORMAT_RAW:
+		  				byte[] bgr = getBGRBytes(image);
+		  				frameName += "_"+image.getWidth()+"x"+image.getHeight()+".bgr"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		  				OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(outputDir, frameName)));
+		  				try {
+		  					out.write(bgr);
+		  				} finally {
+		  					out.close();
+		  				}
+		  				result.bytes += bgr.length;
+		  				break;
+		  			case FORMAT_MAPPED:
+		  				bgr = getBGRBytes(image);
+		  				if (slots==null) {
+		  					String fileName = name+"_"+image.getWidth()+"x"+image.getHeight() //$NON-NLS-1$ //$NON-NLS-2$
+		  							+"x"+frames.length+".bgr"; //$NON-NLS-1$ //$NON-NLS-2$
+		  					slots = new SlotFile(new File(outputDir, fileName), bgr.length, frames.length);
+		  				}
+		  				slots.write(i, bgr);
+		  				result.bytes += bgr.length;
+		  				break;
+		  			default:
+		  				File file = new File(outputDir, frameName+".png"); //$NON-NLS-1$
+		  				ImageIO.write(image, "png", file); //$NON-NLS-1$
+		  				result.bytes += file.length();
+		  		}
+		  		result.frames++;
+		  	}
+	  	} finally {
+	  		if (slots!=null) {
+	  			slots.close();
+	  		}
+	  	}
+	  	result.millis = System.currentTimeMillis()-t0;
+	  	return result;
+  	} finally {
+  		video.dispose();
+  	}
+  }
+
+  /**
+   * Exports the selected frames of many videos concurrently.
+   *
+   * @param paths the video paths
+   * @param threads the number of videos exported at once
+   * @return the export statistics, one per video (null for failed videos)
+   * @throws InterruptedException
+   */
+  public List<Result> export(List<String> paths, int threads) throws InterruptedException {
+  	ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+  	List<Future<Result>> futures = new ArrayList<Future<Result>>();
+  	for (final String path: paths) {
+  		futures.add(executor.submit(new Callable<Result>() {
+				public Result call() throws Exception {
+					return export(path);
+				}
+  		}));
+  	}
+  	executor.shutdown();
+  	executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  	List<Result> results = new ArrayList<Result>();
+  	for (int i = 0; i < futures.size(); i++) {
+  		try {
+  			results.add(futures.get(i).get());
+  		} catch (Exception ex) {
+  			OSPLog.warning("frame export failed for "+paths.get(i)+": "+ex.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+  			results.add(null);
+  		}
+  	}
+  	return results;
+  }
+
+  /**
+   * Gets the numbers of the frames selected for export from a video.
+   *
+   * @param video the video
+   * @return the frame numbers
+   */
+  int[] getFrameNumbers(XuggleVideo video) {
+  	ArrayList<Integer> list = new ArrayList<Integer>();
+  	if (times!=null) {
+  		for (double t: times) {
+  			int n = video.getFrameNumberBefore(t);
+  			if (n>-1) list.add(n);
+  		}
+  	}
+  	else {
+  		int last = Math.min(end, video.getFrameCount()-1);
+  		for (int n = start; n <= last; n += step) {
+  			list.add(n);
+  		}
+  	}
+  	int[] frames = new int[list.size()];
+  	for (int i = 0; i < frames.length; i++) {
+  		frames[i] = list.get(i);
+  	}
+  	return frames;
+  }
+
+  /**
+   * Gets the BGR24 pixel bytes of an image.
+   *
+   * @param image the image
+   * @return the pixel bytes
+   */
+  private static byte[] getBGRBytes(BufferedImage image) {
+  	if (image.getType()!=BufferedImage.TYPE_3BYTE_BGR) {
+  		BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(),
+  				BufferedImage.TYPE_3BYTE_BGR);
+  		bgr.getGraphics().drawImage(image, 0, 0, null);
+  		image = bgr;
+  	}
+  	return ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Export statistics for a single video.
+   */
+  public static class Result {
+  	/** the video path */
+  	public final String path;
+  	/** the number of frames exported */
+  	public int frames;
+  	/** the number of bytes written */
+  	public long bytes;
+  	/** the time taken, including opening the video, in milliseconds */
+  	public long millis;
+
+  	Result(String path) {
+  		this.path = path;
+  	}
+
+  	public String toString() {
+  		double sec = Math.max(millis, 1)/1000.0;
+  		return path+": "+frames+" frames, "+bytes/1024+" KB in "+millis+" ms (" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+  				+Math.round(frames/sec)+" fps)"; //$NON-NLS-1$
+  	}
+  }
+
+  /**
+   * A file of fixed-size frame slots written with positional writes, so no
+   * mapping holds the file open after it is closed.
+   */
+  static class SlotFile {
+  	RandomAccessFile raf;
+  	FileChannel channel;
+  	int frameSize;
+
+  	SlotFile(File file, int frameSize, int frameCount) throws IOException {
+  		this.frameSize = frameSize;
+  		raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+  		raf.setLength((long)frameSize*frameCount);
+  		channel = raf.getChannel();
+  	}
+
+  	void write(int slot, byte[] data) throws IOException {
+  		ByteBuffer src = ByteBuffer.wrap(data, 0, Math.min(data.length, frameSize));
+  		long position = (long)slot*frameSize;
+  		while (src.hasRemaining()) {
+  			position += channel.write(src, position);
+  		}
+  	}
+
+  	void close() throws IOException {
+  		channel.close();
+  		raf.close();
+  	}
+  }
+
+  /**
+   * Exports frames from the videos named on the command line and prints
+   * throughput statistics.
+   *
+   * @param args [-format png|raw|mapped] [-out dir] [-range start:end] [-step n]
+   *   [-times t1,t2,...] [-threads n] video...
+   */
+  public static void main(String[] args) {
+  	if (System.getProperty("java.awt.headless")==null) { //$NON-NLS-1$
+  		System.setProperty("java.awt.headless", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	XuggleFrameExporter exporter = new XuggleFrameExporter();
+  	ArrayList<String> paths = new ArrayList<String>();
+  	int threads = Runtime.getRuntime().availableProcessors();
+  	int start = 0, end = Integer.MAX_VALUE, step = 1;
+  	try {
+	  	for (int i = 0; i < args.length; i++) {
+	  		String arg = args[i];
+	  		if (arg.equals("-format")) { //$NON-NLS-1$
+	  			String f = args[++i].toLowerCase();
+	  			exporter.setFormat(f.equals("raw")? FORMAT_RAW: f.equals("mapped")? FORMAT_MAPPED: FORMAT_PNG); //$NON-NLS-1$ //$NON-NLS-2$
+	  		}
+	  		else if (arg.equals("-out")) { //$NON-NLS-1$
+	  			File dir = new File(args[++i]);
+	  			dir.mkdirs();
+	  			exporter.setOutputDirectory(dir);
+	  		}
+	  		else if (arg.equals("-range")) { //$NON-NLS-1$
+	  			String[] range = args[++i].split(":"); //$NON-NLS-1$
+	  			start = Integer.parseInt(range[0]);
+	  			end = Integer.parseInt(range[1]);
+	  		}
+	  		else if (arg.equals("-step")) { //$NON-NLS-1$
+	  			step = Integer.parseInt(args[++i]);
+	  		}
+	  		else if (arg.equals("-times")) { //$NON-NLS-1$
+	  			String[] t = args[++i].split(","); //$NON-NLS-1$
+	  			double[] times = new double[t.length];
+	  			for (int j = 0; j < t.length; j++) {
+	  				times[j] = Double.parseDouble(t[j]);
+	  			}
+	  			exporter.setTimes(times);
+	  		}
+	  		else if (arg.equals("-threads")) { //$NON-NLS-1$
+	  			threads = Integer.parseInt(args[++i]);
+	  		}
+	  		else {
+	  			paths.add(arg);
+	  		}
+	  	}
+  	} catch (Exception ex) {
+  		paths.clear();
+  	}
+  	if (paths.isEmpty()) {
+  		System.err.println("usage: XuggleFrameExporter [-format png|raw|mapped] [-out dir]" //$NON-NLS-1$
+  				+" [-range start:end] [-step n] [-times t1,t2,...] [-threads n] video..."); //$NON-NLS-1$
+  		System.exit(1);
+  	}
+  	if (exporter.times==null) {
+  		exporter.setFrames(start, end, step);
+  	}
+  	long t0 = System.currentTimeMillis();
+  	List<Result> results;
+  	try {
+  		results = exporter.export(paths, threads);
+  	} catch (InterruptedException ex) {
+  		return;
+  	}
+  	long millis = Math.max(System.currentTimeMillis()-t0, 1);
+  	int frames = 0, failed = 0;
+  	long bytes = 0;
+  	for (int i = 0; i < results.size(); i++) {
+  		Result result = results.get(i);
+  		if (result==null) {
+  			System.err.println(paths.get(i)+": export failed"); //$NON-NLS-1$
+  			failed++;
+  			continue;
+  		}
+  		System.out.println(result);
+  		frames += result.frames;
+  		bytes += result.bytes;
+  	}
+  	System.out.println(paths.size()-failed+" videos ("+failed+" failed), "+frames+" frames, " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  			+bytes/(1024*1024)+" MB in "+millis+" ms: " //$NON-NLS-1$ //$NON-NLS-2$
+  			+Math.round(1000.0*frames/millis)+" frames/s, " //$NON-NLS-1$
+  			+Math.round(1000.0*bytes/(1024*1024)/millis)+" MB/s"); //$NON-NLS-1$
+  	System.exit(failed==0? 0: 2);
+  }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * The frame index of a video: the packet timestamps needed to display each frame,
+ * the frame start times, the video duration and frame rate statistics. An index is
+ * built once per file by XuggleVideo and shared by all views of that file
+ * through their XuggleSource.
+ * <p>
+ * Timestamps are kept in primitive arrays. For constant frame rate video,
+ * time to frame conversions are arithmetic; otherwise they are binary searches.
+ * When every frame interval is identical the per-frame arrays are dropped and
+ * frame, timestamp and time are mapped in closed form, so the index holds only
+ * the key frame data.
+ */
+class XuggleFrameIndex {
+
+  // maximum variation in frame interval for constant frame rate, in timebase units
+  static final long CFR_TOLERANCE = 1;
+  // frame rate assumed for the last frame when neither its packet nor the stream gives one
+  static final double DEFAULT_FRAME_RATE = 30;
+
+  private int frameCount;
+  // timestamps of displayed packets (last packet loaded) by frame number
+  private long[] timeStamps = new long[256];
+  // first frame and key packet timestamp of each run of frames that share a key packet
+  private int keyRunCount;
+  private int[] keyRunFrames = new int[16];
+  private long[] keyRunTimeStamps = new long[16];
+  // frame start times in milliseconds
+  private double[] startTimes;
+  private double duration;
+  // milliseconds per timebase unit
+  private double millisPerUnit;
+  // true if timestamps increase with frame number
+  private boolean sorted;
+  // maps timestamp to frame number when timestamps are not sorted
+  private Map<Long, Integer> frameNumbers;
+  // closed form mapping for exact constant frame rate: per-frame arrays are null
+  private boolean closedForm;
+  private long firstTimeStamp, interval;
+  // frame rate statistics
+  private boolean constantRate;
+  private double meanInterval, minInterval, maxInterval; // milliseconds
+  private int[] segmentFrames; // first frame of each constant-rate segment
+  // maps key packet timestamp to byte position of the key packet
+  Map<Long, Long> keyPositions = new HashMap<Long, Long>();
+  // byte position of the first video packet, or -1 if unknown
+  long startPosition = -1;
+
+  /**
+   * Adds a frame while indexing.
+   *
+   * @param timeStamp the timestamp of the displayed packet
+   * @param keyTimeStamp the timestamp of the key packet
+   */
+  void addFrame(long timeStamp, long keyTimeStamp) {
+  	if (frameCount==timeStamps.length) {
+  		timeStamps = Arrays.copyOf(timeStamps, 2*frameCount);
+  	}
+  	timeStamps[frameCount] = timeStamp;
+  	if (keyRunCount==0 || keyRunTimeStamps[keyRunCount-1]!=keyTimeStamp) {
+  		if (keyRunCount==keyRunFrames.length) {
+  			keyRunFrames = Arrays.copyOf(keyRunFrames, 2*keyRunCount);
+  			keyRunTimeStamps = Arrays.copyOf(keyRunTimeStamps, 2*keyRunCount);
+  		}
+  		keyRunFrames[keyRunCount] = frameCount;
+  		keyRunTimeStamps[keyRunCount] = keyTimeStamp;
+  		keyRunCount++;
+  	}
+  	frameCount++;
+  }
+
+  /**
+   * Completes the index after all frames have been added: computes the
+   * start times, video duration and frame rate statistics.
+   *
+   * @param timebase the stream timebase in seconds
+   * @param lastDuration the duration of the last packet in timebase units, or 0 if unknown
+   * @param frameRate the nominal frame rate of the stream in frames per second, or 0 if unknown
+   */
+  void finish(double timebase, long lastDuration, double frameRate) {
+  	int n = frameCount;
+  	timeStamps = Arrays.copyOf(timeStamps, n);
+  	keyRunFrames = Arrays.copyOf(keyRunFrames, keyRunCount);
+  	keyRunTimeStamps = Arrays.copyOf(keyRunTimeStamps, keyRunCount);
+  	millisPerUnit = timebase*1000;
+  	// frame durations in timebase units
+  	long[] durations = new long[n];
+  	startTimes = new double[n];
+  	sorted = true;
+  	long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+  	for (int i = 0; i < n; i++) {
+  		startTimes[i] = (timeStamps[i]-timeStamps[0])*millisPerUnit;
+  		if (i<n-1) {
+  			long d = timeStamps[i+1]-timeStamps[i];
+  			durations[i] = d;
+  			sorted = sorted && d>0;
+  			min = Math.min(min, d);
+  			max = Math.max(max, d);
+  		}
+  	}
+  	if (n==0) return;
+  	// use the packet duration of the last frame, else assume it equals the previous,
+  	// else one period of the nominal frame rate, else the mean interval
+  	long last = lastDuration>0 || n==1? lastDuration: durations[n-2];
+  	if (last<=0 && frameRate>0) {
+  		last = Math.max(1, Math.round(1/(frameRate*timebase)));
+  	}
+  	if (last<=0 && n>1 && timeStamps[n-1]>timeStamps[0]) {
+  		last = Math.max(1, Math.round((timeStamps[n-1]-timeStamps[0])/(n-1.0)));
+  	}
+  	if (last<=0) {
+  		last = Math.max(1, Math.round(1/(DEFAULT_FRAME_RATE*timebase)));
+  	}
+  	durations[n-1] = last;
+  	if (n==1) {
+  		min = max = durations[0];
+  	}
+  	duration = startTimes[n-1]+durations[n-1]*millisPerUnit;
+  	if (!sorted) {
+  		frameNumbers = new HashMap<Long, Integer>();
+  		for (int i = 0; i < n; i++) {
+  			frameNumbers.put(timeStamps[i], i);
+  		}
+  	}
+  	// frame rate statistics
+  	minInterval = min*millisPerUnit;
+  	maxInterval = max*millisPerUnit;
+  	meanInterval = n>1? startTimes[n-1]/(n-1): durations[0]*millisPerUnit;
+  	constantRate = n>1 && sorted && max-min<=CFR_TOLERANCE;
+  	// segments of constant frame rate
+  	int[] segments = new int[16];
+  	int count = 0;
+  	long segmentInterval = 0;
+  	for (int i = 0; i < n-1; i++) {
+  		if (i==0 || Math.abs(durations[i]-segmentInterval)>CFR_TOLERANCE) {
+  			if (count==segments.length) {
+  				segments = Arrays.copyOf(segments, 2*count);
+  			}
+  			segments[count++] = i;
+  			segmentInterval = durations[i];
+  		}
+  	}
+  	segmentFrames = count==0? new int[] {0}: Arrays.copyOf(segments, count);
+  	// drop the per-frame arrays if the frame rate is exactly constant
+  	if (constantRate && min==max) {
+  		closedForm = true;
+  		firstTimeStamp = timeStamps[0];
+  		interval = min;
+  		if (!checkClosedForm(timeStamps, startTimes)) {
+  			OSPLog.warning("closed form frame index failed round trip check"); //$NON-NLS-1$
+  			closedForm = false;
+  			return;
+  		}
+  		timeStamps = null;
+  		startTimes = null;
+  	}
+  }
+
+  /**
+   * Checks that the closed form mapping reproduces the indexed timestamps and
+   * start times, and maps each timestamp back to its frame.
+   *
+   * @param stamps the indexed timestamps
+   * @param times the indexed start times
+   * @return true if every frame round trips
+   */
+  private boolean checkClosedForm(long[] stamps, double[] times) {
+  	for (int i = 0; i < frameCount; i++) {
+  		if (getTimeStamp(i)!=stamps[i] || getFrameNumber(stamps[i])!=i
+  				|| Math.abs(getFrameTime(i)-times[i])>1e-6
+  				|| getFrameNumberBefore(times[i])!=i) {
+  			return false;
+  		}
+  	}
+  	return true;
+  }
+
+  /**
+   * Gets the number of frames in the index.
+   *
+   * @return the frame count
+   */
+  int getFrameCount() {
+  	return frameCount;
+  }
+
+  /**
+   * Gets the timestamp for a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the timestamp in stream timebase units
+   */
+  long getTimeStamp(int frameNumber) {
+  	if (closedForm) {
+  		return firstTimeStamp+frameNumber*interval;
+  	}
+  	return timeStamps[frameNumber];
+  }
+
+  /**
+   * Gets the timestamp of the key packet needed to display a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the timestamp in stream timebase units
+   */
+  long getKeyTimeStamp(int frameNumber) {
+  	int i = Arrays.binarySearch(keyRunFrames, frameNumber);
+  	return keyRunTimeStamps[i<0? -i-2: i];
+  }
+
+  /**
+   * Gets the first frame that shares the key packet of a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the first frame number of the key packet's run of frames
+   */
+  int getKeyRunStart(int frameNumber) {
+  	int i = Arrays.binarySearch(keyRunFrames, frameNumber);
+  	return keyRunFrames[i<0? -i-2: i];
+  }
+
+  /**
+   * Gets the index of the key packet run that contains a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the run index, counting from 0 at the first key packet
+   */
+  int getKeyRun(int frameNumber) {
+  	int i = Arrays.binarySearch(keyRunFrames, frameNumber);
+  	return i<0? -i-2: i;
+  }
+
+  /**
+   * Gets the first frame that uses the key packet after that of a specified frame.
+   *
+   * @param frameNumber the frame number
+   * @return the first frame number of the next key packet's run, or the frame count if none
+   */
+  int getNextKeyRunStart(int frameNumber) {
+  	int i = Arrays.binarySearch(keyRunFrames, frameNumber);
+  	i = i<0? -i-1: i+1;
+  	return i<keyRunCount? keyRunFrames[i]: frameCount;
+  }
+
+  /**
+   * Gets the byte position of a key packet.
+   *
+   * @param keyTimeStamp the key packet timestamp in stream timebase units
+   * @return the byte position, or -1 if not known
+   */
+  long getKeyPosition(long keyTimeStamp) {
+  	Long position = keyPositions.get(keyTimeStamp);
+  	return position==null? -1: position;
+  }
+
+  /**
+   * Gets the frame number for a specified timestamp.
+   *
+   * @param timeStamp the timestamp in stream timebase units
+   * @return the frame number, or -1 if not found
+   */
+  int getFrameNumber(long timeStamp) {
+  	if (closedForm) {
+  		long offset = timeStamp-firstTimeStamp;
+  		if (offset<0 || offset%interval!=0 || offset/interval>=frameCount) {
+  			return -1;
+  		}
+  		return (int)(offset/interval);
+  	}
+  	if (!sorted) {
+  		Integer n = frameNumbers.get(timeStamp);
+  		return n==null? -1: n;
+  	}
+  	int n = Arrays.binarySearch(timeStamps, timeStamp);
+  	return n<0? -1: n;
+  }
+
+  /**
+   * Gets the start time of a frame.
+   *
+   * @param frameNumber the frame number
+   * @return the start time in milliseconds, or -1 if out of range
+   */
+  double getFrameTime(int frameNumber) {
+  	if (frameNumber<0 || frameNumber>=frameCount) {
+  		return -1;
+  	}
+  	if (closedForm) {
+  		return frameNumber*interval*millisPerUnit;
+  	}
+  	return startTimes[frameNumber];
+  }
+
+  /**
+   * Gets the duration of the video.
+   *
+   * @return the duration in milliseconds
+   */
+  double getDuration() {
+  	return duration;
+  }
+
+  /**
+   * Gets the number of the last frame starting at or before a specified time.
+   *
+   * @param time the time in milliseconds
+   * @return the frame number, or -1 if the time is outside the video
+   */
+  int getFrameNumberBefore(double time) {
+  	if (time<0 || time>=duration || frameCount==0) {
+  		return -1;
+  	}
+  	int n;
+  	if (closedForm) {
+  		// work in timebase units to avoid rounding at frame boundaries
+  		n = (int)Math.min(frameCount-1, (long)Math.floor(time/millisPerUnit)/interval);
+  		while (n>0 && getFrameTime(n)>time) n--;
+  		while (n<frameCount-1 && getFrameTime(n+1)<=time) n++;
+  	}
+  	else if (constantRate) {
+  		// estimate, then correct for timestamp rounding
+  		n = Math.min(frameCount-1, (int)(time/meanInterval));
+  		while (n>0 && startTimes[n]>time) n--;
+  		while (n<frameCount-1 && startTimes[n+1]<=time) n++;
+  	}
+  	else if (sorted) {
+  		n = Arrays.binarySearch(startTimes, time);
+  		if (n<0) n = -n-2;
+  	}
+  	else {
+  		for (n = 0; n < frameCount; n++) {
+  			if (time<startTimes[n]) break;
+  		}
+  		n--;
+  	}
+  	return n;
+  }
+
+  /**
+   * Determines if the video has a constant frame rate.
+   *
+   * @return true if all frame intervals are equal within one timebase unit
+   */
+  boolean isConstantRate() {
+  	return constantRate;
+  }
+
+  /**
+   * Determines if frames are mapped in closed form without per-frame arrays.
+   *
+   * @return true if every frame interval is identical
+   */
+  boolean isClosedForm() {
+  	return closedForm;
+  }
+
+  /**
+   * Gets the mean frame interval.
+   *
+   * @return the mean interval in milliseconds
+   */
+  double getMeanInterval() {
+  	return meanInterval;
+  }
+
+  /**
+   * Gets the minimum frame interval.
+   *
+   * @return the minimum interval in milliseconds
+   */
+  double getMinInterval() {
+  	return minInterval;
+  }
+
+  /**
+   * Gets the maximum frame interval.
+   *
+   * @return the maximum interval in milliseconds
+   */
+  double getMaxInterval() {
+  	return maxInterval;
+  }
+
+  /**
+   * Gets the first frame of each segment with a constant frame rate.
+   *
+   * @return the segment start frames
+   */
+  int[] getSegmentFrames() {
+  	return segmentFrames.clone();
+  }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * A ring of fixed-size BGR frame slots in a single direct buffer. One thread
+ * puts frames and another takes them, so frames are copied once into native
+ * memory and no Java heap is allocated per frame. When the ring is full, put
+ * either waits for a free slot (backpressure) or drops the frame.
+ */
+class XuggleFrameRing {
+
+	private ByteBuffer buffer;
+	private int width, height, slotSize, slotCount;
+	private long[] frameNumbers;
+	private int head, count;
+	private boolean closed, dropWhenFull;
+	// statistics
+	private long accepted, dropped, waitNanos;
+	private int maxBacklog;
+
+  /**
+   * Creates a ring.
+   *
+   * @param slots the number of frame slots, reduced if the ring would exceed 2GB
+   * @param w the frame width
+   * @param h the frame height
+   * @param drop true to drop frames when full, false to wait
+   * @throws IllegalArgumentException if a single frame does not fit in a buffer
+   */
+  XuggleFrameRing(int slots, int w, int h, boolean drop) {
+  	long frameBytes = 3L*w*h;
+  	if (slots<1 || frameBytes<1 || frameBytes>Integer.MAX_VALUE) {
+  		throw new IllegalArgumentException("invalid ring size "+slots+" x "+w+"x"+h); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  	}
+  	if (frameBytes*slots>Integer.MAX_VALUE) {
+  		int fit = (int)(Integer.MAX_VALUE/frameBytes);
+  		OSPLog.warning("frame ring reduced from "+slots+" to "+fit+" slots"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  		slots = fit;
+  	}
+  	width = w;
+  	height = h;
+  	slotSize = (int)frameBytes;
+  	slotCount = slots;
+  	dropWhenFull = drop;
+  	buffer = ByteBuffer.allocateDirect(slotSize*slots);
+  	frameNumbers = new long[slots];
+  }
+
+  /**
+   * Copies a frame into the next free slot.
+   *
+   * @param image a TYPE_3BYTE_BGR image of the ring frame size
+   * @param frameNumber the frame number
+   * @return true if the frame was queued, false if dropped or closed
+   */
+  boolean put(BufferedImage image, long frameNumber) {
+  	int slot;
+  	synchronized(this) {
+  		if (count==slotCount && !closed) {
+  			if (dropWhenFull) {
+  				dropped++;
+  				return false;
+  			}
+  			long t0 = System.nanoTime();
+  			while (count==slotCount && !closed) {
+  				try {
+  					wait();
+  				} catch (InterruptedException ex) {
+  					dropped++;
+  					return false;
+  				}
+  			}
+  			waitNanos += System.nanoTime()-t0;
+  		}
+  		if (closed) return false;
+  		slot = (head+count)%slotCount;
+  	}
+  	// only this thread writes the reserved slot
+  	byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+  	ByteBuffer dest = buffer.duplicate();
+  	dest.position(slot*slotSize);
+  	dest.put(data, 0, slotSize);
+  	synchronized(this) {
+  		frameNumbers[slot] = frameNumber;
+  		count++;
+  		accepted++;
+  		maxBacklog = Math.max(maxBacklog, count);
+  		notifyAll();
+  	}
+  	return true;
+  }
+
+  /**
+   * Waits for the oldest queued frame. The slot remains reserved until release()
+   * is called.
+   *
+   * @return the slot index, or -1 if the ring is closed and empty
+   * @throws InterruptedException
+   */
+  synchronized int take() throws InterruptedException {
+  	while (count==0 && !closed) {
+  		wait();
+  	}
+  	return count==0? -1: head;
+  }
+
+  /**
+   * Frees the oldest slot after its frame has been taken.
+   */
+  synchronized void release() {
+  	head = (head+1)%slotCount;
+  	count--;
+  	notifyAll();
+  }
+
+  /**
+   * Closes the ring. Queued frames can still be taken.
+   */
+  synchronized void close() {
+  	closed = true;
+  	notifyAll();
+  }
+
+  /**
+   * Gets a read-only view of a slot.
+   *
+   * @param slot the slot index
+   * @return the BGR bytes of the slot
+   */
+  ByteBuffer getSlot(int slot) {
+  	ByteBuffer data = buffer.asReadOnlyBuffer();
+  	data.limit(slot*slotSize+slotSize).position(slot*slotSize);
+  	return data.slice();
+  }
+
+  /**
+   * Gets the frame number of the frame in a slot.
+   *
+   * @param slot the slot index
+   * @return the frame number
+   */
+  synchronized long getFrameNumber(int slot) {
+  	return frameNumbers[slot];
+  }
+
+  /**
+   * Determines if an image can be put without conversion.
+   *
+   * @param image the image
+   * @return true if the image is TYPE_3BYTE_BGR with the ring frame size
+   */
+  boolean accepts(BufferedImage image) {
+  	return image.getType()==BufferedImage.TYPE_3BYTE_BGR
+  			&& image.getWidth()==width && image.getHeight()==height
+  			&& ((DataBufferByte)image.getRaster().getDataBuffer()).getData().length==slotSize;
+  }
+
+  /**
+   * Gets the frame width.
+   *
+   * @return the width
+   */
+  int getWidth() {
+  	return width;
+  }
+
+  /**
+   * Gets the frame height.
+   *
+   * @return the height
+   */
+  int getHeight() {
+  	return height;
+  }
+
+  /**
+   * Gets the number of frames queued so far.
+   *
+   * @return the accepted frame count
+   */
+  synchronized long getAcceptedCount() {
+  	return accepted;
+  }
+
+  /**
+   * Gets the number of frames dropped because the ring was full.
+   *
+   * @return the dropped frame count
+   */
+  synchronized long getDroppedCount() {
+  	return dropped;
+  }
+
+  /**
+   * Gets the total time put has waited for a free slot.
+   *
+   * @return the wait time in nanoseconds
+   */
+  synchronized long getWaitNanos() {
+  	return waitNanos;
+  }
+
+  /**
+   * Gets the largest number of frames queued at once.
+   *
+   * @return the maximum backlog
+   */
+  synchronized int getMaxBacklog() {
+  	return maxBacklog;
+  }
+
+  /**
+   * Gets the number of frames currently queued.
+   *
+   * @return the backlog
+   */
+  synchronized int getBacklog() {
+  	return count;
+  }
+
+}
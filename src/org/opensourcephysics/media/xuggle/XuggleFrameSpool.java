@@ -0,0 +1,163 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A spool of raw BGR frames in a single temp file. Frames are appended
+ * sequentially to space preallocated in large steps, and read back with
+ * positional reads into a direct buffer reused by each reading thread, so
+ * neither writing nor reading involves an image codec. The file is never
+ * mapped, so it can be deleted as soon as the spool is closed.
+ */
+class XuggleFrameSpool implements AutoCloseable {
+
+	// number of frames preallocated at a time
+	static final int PREALLOCATED_FRAMES = 64;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private int width, height, frameSize;
+	private int frameCount;
+	private long allocated;
+	// frame buffer of each reading thread
+	private ThreadLocal<ByteBuffer> frameBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(frameSize);
+		}
+	};
+
+  /**
+   * Creates a spool.
+   *
+   * @param file the spool file
+   * @param w the frame width
+   * @param h the frame height
+   * @throws IOException
+   */
+  XuggleFrameSpool(File file, int w, int h) throws IOException {
+  	this.file = file;
+  	width = w;
+  	height = h;
+  	frameSize = w*h*3;
+  	raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+  	channel = raf.getChannel();
+  	file.deleteOnExit();
+  }
+
+  /**
+   * Appends a frame.
+   *
+   * @param image a TYPE_3BYTE_BGR image of the spool frame size
+   * @throws IOException
+   */
+  void append(BufferedImage image) throws IOException {
+  	long position = frameCount*(long)frameSize;
+  	if (position+frameSize>allocated) {
+  		allocated = position+(long)PREALLOCATED_FRAMES*frameSize;
+  		raf.setLength(allocated);
+  	}
+  	byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+  	ByteBuffer src = ByteBuffer.wrap(data, 0, frameSize);
+  	while (src.hasRemaining()) {
+  		position += channel.write(src, position);
+  	}
+  	frameCount++;
+  }
+
+  /**
+   * Reads a frame. The returned buffer belongs to the calling thread and is
+   * overwritten by its next read, so frames can be read by several threads.
+   *
+   * @param frameNumber the frame number
+   * @return the BGR bytes of the frame
+   * @throws IOException
+   */
+  ByteBuffer getFrame(int frameNumber) throws IOException {
+  	ByteBuffer frame = frameBuffer.get();
+  	frame.clear();
+  	long position = frameNumber*(long)frameSize;
+  	while (frame.hasRemaining()) {
+  		int n = channel.read(frame, position);
+  		if (n<0) {
+  			throw new EOFException("frame "+frameNumber+" not in spool"); //$NON-NLS-1$ //$NON-NLS-2$
+  		}
+  		position += n;
+  	}
+  	frame.flip();
+  	return frame;
+  }
+
+  /**
+   * Determines if an image can be appended without conversion.
+   *
+   * @param image the image
+   * @return true if the image is TYPE_3BYTE_BGR with the spool frame size
+   */
+  boolean accepts(BufferedImage image) {
+  	return image.getType()==BufferedImage.TYPE_3BYTE_BGR
+  			&& image.getWidth()==width && image.getHeight()==height
+  			&& ((DataBufferByte)image.getRaster().getDataBuffer()).getData().length==frameSize;
+  }
+
+  /**
+   * Gets the number of frames in the spool.
+   *
+   * @return the frame count
+   */
+  int getFrameCount() {
+  	return frameCount;
+  }
+
+  /**
+   * Gets the spool file.
+   *
+   * @return the file
+   */
+  File getFile() {
+  	return file;
+  }
+
+  /**
+   * Closes the spool file. The file itself is not deleted.
+   */
+  public void close() {
+  	try {
+  		channel.close();
+  		raf.close();
+  	} catch (IOException ex) {
+  	}
+  }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * A buffer of decoded frames for reverse playback. Frames are decoded forward
+ * a block at a time, from the key frame to the requested frame, and then
+ * served in any order. While one block is played the block before it is
+ * decoded on another thread with a second decoder leased from the source.
+ * Blocks never span more than one GOP or MAX_FRAMES frames, so memory is
+ * bounded whatever the GOP length.
+ */
+class XuggleGopBuffer {
+
+	// maximum number of decoded frames per block
+	static final int MAX_FRAMES = 64;
+
+	private static ExecutorService prefetcher;
+
+	private XuggleSource source;
+	private XuggleFrameIndex index;
+	private String fileName;
+	private Block current;
+	private Future<Block> prefetch;
+	private AtomicBoolean prefetchCanceled;
+	private int prefetchEnd = -1;
+
+  /**
+   * Creates a buffer for a source.
+   *
+   * @param source the source
+   * @param index the frame index
+   * @param fileName the video file name
+   */
+  XuggleGopBuffer(XuggleSource source, XuggleFrameIndex index, String fileName) {
+  	this.source = source;
+  	this.index = index;
+  	this.fileName = fileName;
+  }
+
+  /**
+   * Gets the image for a frame, decoding its block if needed, and starts
+   * prefetching the previous block.
+   *
+   * @param frameNumber the frame number
+   * @return the image, or null if unable to decode
+   */
+  synchronized BufferedImage getImage(int frameNumber) {
+  	if (current==null || !current.contains(frameNumber)) {
+  		current = null;
+  		if (prefetch!=null && frameNumber<=prefetchEnd) {
+  			try {
+  				Block block = prefetch.get();
+  				if (block!=null && block.contains(frameNumber)) {
+  					current = block;
+  				}
+  			} catch (InterruptedException ex) {
+  			} catch (ExecutionException ex) {
+  				OSPLog.fine("reverse prefetch failed: "+ex.getCause()); //$NON-NLS-1$
+  			}
+  		}
+  		else if (prefetch!=null) {
+  			cancelPrefetch();
+  		}
+  		prefetch = null;
+  		if (current==null) {
+  			current = decodeBlock(frameNumber, null);
+  		}
+  		if (current==null) {
+  			return null;
+  		}
+  		if (current.first>0) {
+  			startPrefetch(current.first-1);
+  		}
+  	}
+  	return current.images[frameNumber-current.first];
+  }
+
+  /**
+   * Discards the decoded frames and cancels any prefetch.
+   */
+  synchronized void clear() {
+  	if (prefetch!=null) {
+  		cancelPrefetch();
+  		prefetch = null;
+  	}
+  	current = null;
+  }
+
+  /**
+   * Starts decoding the block that ends with a specified frame.
+   *
+   * @param end the last frame of the block
+   */
+  private void startPrefetch(final int end) {
+  	synchronized(XuggleGopBuffer.class) {
+  		if (prefetcher==null) {
+  			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "XuggleVideo reverse prefetch"); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+  			});
+  		}
+  	}
+  	prefetchEnd = end;
+  	final AtomicBoolean canceled = new AtomicBoolean();
+  	prefetchCanceled = canceled;
+  	prefetch = prefetcher.submit(new Callable<Block>() {
+			public Block call() {
+				return decodeBlock(end, canceled);
+			}
+  	});
+  }
+
+  /**
+   * Cancels the prefetch without interrupting it: an interrupt would close
+   * the file channel of the decoder's input. The prefetch stops at its next
+   * frame and returns its decoder to the source.
+   */
+  private void cancelPrefetch() {
+  	prefetchCanceled.set(true);
+  	prefetch.cancel(false);
+  }
+
+  /**
+   * Decodes the block that ends with a specified frame. The block starts at
+   * the frame's key frame or MAX_FRAMES earlier, whichever is later.
+   *
+   * @param end the last frame of the block
+   * @param canceled a flag that stops decoding when set (may be null)
+   * @return the block, or null if unable to decode or canceled
+   */
+  private Block decodeBlock(int end, AtomicBoolean canceled) {
+  	int first = Math.max(index.getKeyRunStart(end), end-MAX_FRAMES+1);
+  	XuggleDecoder decoder;
+  	try {
+  		decoder = source.leaseDecoder(first, fileName);
+  	} catch (IOException ex) {
+  		OSPLog.warning(ex.getMessage());
+  		return null;
+  	}
+  	Block block = new Block(first, end);
+  	try {
+  		for (int i = first; i <= end; i++) {
+  			if ((canceled!=null && canceled.get()) || !decoder.loadPicture(i)) {
+  				return null;
+  			}
+  			block.images[i-first] = decoder.getBufferedImage();
+  		}
+  	} finally {
+  		source.releaseDecoder(decoder);
+  	}
+  	return block;
+  }
+
+  /**
+   * A block of consecutive decoded frames.
+   */
+  static class Block {
+
+  	int first, last;
+  	BufferedImage[] images;
+
+  	Block(int first, int last) {
+  		this.first = first;
+  		this.last = last;
+  		images = new BufferedImage[last-first+1];
+  	}
+
+  	boolean contains(int frameNumber) {
+  		return frameNumber>=first && frameNumber<=last;
+  	}
+  }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.opensourcephysics.controls.OSPLog;
+
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+
+/**
+ * An input that reads a remote video with HTTP range requests. Fetched blocks
+ * are cached in a local temp file, so seeks and container reloads never
+ * download the same bytes twice, and the blocks following each read are
+ * prefetched in the background ahead of playback.
+ */
+public class XuggleHttpInput extends XuggleInput {
+
+	// size of the blocks requested from the server
+	static final int BLOCK_SIZE = 256*1024;
+	// number of blocks prefetched after the block being read
+	static final int PREFETCH_BLOCKS = 4;
+	// connect and read timeouts of range requests in milliseconds
+	static final int CONNECT_TIMEOUT = 10000;
+	static final int READ_TIMEOUT = 30000;
+
+	private static ExecutorService prefetcher;
+
+	private URL url;
+	private long length;
+	private int blockCount;
+	private File cacheFile;
+	private RandomAccessFile cache;
+	private BitSet cached = new BitSet();
+	private BitSet fetching = new BitSet();
+	private boolean closed;
+
+  /**
+   * Creates an input for a remote video if its server supports range requests.
+   *
+   * @param path the URL of the video
+   * @return the input, or null if range requests are not supported
+   */
+  public static XuggleHttpInput create(String path) {
+  	try {
+  		URL url = new URL(path);
+  		String protocol = url.getProtocol().toLowerCase();
+  		if (!protocol.equals("http") && !protocol.equals("https")) { //$NON-NLS-1$ //$NON-NLS-2$
+  			return null;
+  		}
+  		// probe with a one-byte range request
+  		HttpURLConnection conn = openConnection(url);
+  		conn.setRequestProperty("Range", "bytes=0-0"); //$NON-NLS-1$ //$NON-NLS-2$
+  		int code = conn.getResponseCode();
+  		String range = conn.getHeaderField("Content-Range"); //$NON-NLS-1$
+  		conn.disconnect();
+  		// Content-Range: bytes 0-0/length
+  		if (code!=HttpURLConnection.HTTP_PARTIAL || range==null || range.indexOf('/')<0) {
+  			return null;
+  		}
+  		String total = range.substring(range.indexOf('/')+1).trim();
+  		if (total.equals("*")) { //$NON-NLS-1$
+  			return null;
+  		}
+  		return new XuggleHttpInput(url, Long.parseLong(total));
+  	} catch (Exception ex) {
+  		OSPLog.finer("no range requests for "+path+": "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  		return null;
+  	}
+  }
+
+  /**
+   * Opens a connection with the range request timeouts, so an unresponsive
+   * server fails the request instead of blocking it indefinitely.
+   *
+   * @param url the URL
+   * @return the connection
+   * @throws IOException
+   */
+  private static HttpURLConnection openConnection(URL url) throws IOException {
+  	HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+  	conn.setConnectTimeout(CONNECT_TIMEOUT);
+  	conn.setReadTimeout(READ_TIMEOUT);
+  	return conn;
+  }
+
+  private XuggleHttpInput(URL url, long length) throws IOException {
+  	this.url = url;
+  	this.length = length;
+  	blockCount = (int)((length+BLOCK_SIZE-1)/BLOCK_SIZE);
+  	cacheFile = File.createTempFile("xuggle_http_", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+  	cacheFile.deleteOnExit();
+  	cache = new RandomAccessFile(cacheFile, "rw"); //$NON-NLS-1$
+  }
+
+  /**
+   * Gets the number of bytes held in the local cache.
+   *
+   * @return the cached byte count
+   */
+  public synchronized long getCachedBytes() {
+  	int n = cached.cardinality();
+  	if (blockCount>0 && cached.get(blockCount-1)) {
+  		return (n-1)*(long)BLOCK_SIZE+getBlockLength(blockCount-1);
+  	}
+  	return n*(long)BLOCK_SIZE;
+  }
+
+  @Override
+  protected IURLProtocolHandler createHandler() {
+  	return new HttpHandler();
+  }
+
+  /**
+   * Unregisters this input and deletes its local cache.
+   */
+  @Override
+  public void close() {
+  	super.close();
+  	synchronized(this) {
+  		closed = true;
+  		try {
+  			cache.close();
+  		} catch (IOException ex) {
+  		}
+  		cacheFile.delete();
+  	}
+  }
+
+  /**
+   * Gets the length of a block.
+   *
+   * @param block the block index
+   * @return the length in bytes
+   */
+  private int getBlockLength(int block) {
+  	return (int)Math.min(BLOCK_SIZE, length-block*(long)BLOCK_SIZE);
+  }
+
+  /**
+   * Makes sure a block is in the local cache, fetching it if needed.
+   * Waits if another thread is already fetching the block.
+   *
+   * @param block the block index
+   * @return true if the block is cached
+   */
+  private boolean ensureBlock(int block) {
+  	synchronized(this) {
+  		while (fetching.get(block) && !closed) {
+  			try {
+  				wait();
+  			} catch (InterruptedException ex) {
+  				return false;
+  			}
+  		}
+  		if (cached.get(block)) return true;
+  		if (closed) return false;
+  		fetching.set(block);
+  	}
+  	try {
+  		byte[] data = fetch(block);
+  		synchronized(this) {
+  			if (closed) return false;
+  			cache.seek(block*(long)BLOCK_SIZE);
+  			cache.write(data);
+  			cached.set(block);
+  			return true;
+  		}
+  	} catch (IOException ex) {
+  		OSPLog.warning("unable to read "+url+": "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  		return false;
+  	} finally {
+  		synchronized(this) {
+  			fetching.clear(block);
+  			notifyAll();
+  		}
+  	}
+  }
+
+  /**
+   * Fetches a block from the server with a range request.
+   *
+   * @param block the block index
+   * @return the block data
+   * @throws IOException
+   */
+  private byte[] fetch(int block) throws IOException {
+  	long start = block*(long)BLOCK_SIZE;
+  	byte[] data = new byte[getBlockLength(block)];
+  	long t0 = System.nanoTime();
+  	HttpURLConnection conn = openConnection(url);
+  	conn.setRequestProperty("Range", "bytes="+start+"-"+(start+data.length-1)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  	try {
+  		if (conn.getResponseCode()!=HttpURLConnection.HTTP_PARTIAL) {
+  			throw new IOException("range request refused: "+conn.getResponseCode()); //$NON-NLS-1$
+  		}
+  		InputStream in = conn.getInputStream();
+  		int n = 0;
+  		while (n<data.length) {
+  			int count = in.read(data, n, data.length-n);
+  			if (count<0) {
+  				throw new IOException("incomplete range response"); //$NON-NLS-1$
+  			}
+  			n += count;
+  		}
+  		in.close();
+  	} finally {
+  		conn.disconnect();
+  	}
+  	countRead(data.length, System.nanoTime()-t0);
+  	return data;
+  }
+
+  /**
+   * Prefetches the blocks following a block in the background.
+   *
+   * @param block the block being read
+   */
+  private void prefetch(int block) {
+  	synchronized(XuggleHttpInput.class) {
+  		if (prefetcher==null) {
+  			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "XuggleHttpInput prefetch"); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+  			});
+  		}
+  	}
+  	int last = Math.min(blockCount-1, block+PREFETCH_BLOCKS);
+  	for (int i = block+1; i <= last; i++) {
+  		synchronized(this) {
+  			if (closed || cached.get(i) || fetching.get(i)) continue;
+  		}
+  		final int next = i;
+  		prefetcher.execute(new Runnable() {
+				public void run() {
+					ensureBlock(next);
+				}
+  		});
+  	}
+  }
+
+  /**
+   * A handler that reads the cached video for a single container.
+   */
+  class HttpHandler implements IURLProtocolHandler {
+
+  	long position;
+
+  	public int open(String url, int flags) {
+  		position = 0;
+  		return flags==URL_RDONLY_MODE && !closed? 0: -1;
+  	}
+
+  	public int read(byte[] buf, int size) {
+  		if (position>=length) {
+  			return 0;
+  		}
+  		int block = (int)(position/BLOCK_SIZE);
+  		if (!ensureBlock(block)) {
+  			return -1;
+  		}
+  		prefetch(block);
+  		// read no further than the end of the block
+  		long blockEnd = block*(long)BLOCK_SIZE+getBlockLength(block);
+  		int n = (int)Math.min(size, blockEnd-position);
+  		synchronized(XuggleHttpInput.this) {
+  			if (closed) return -1;
+  			try {
+  				cache.seek(position);
+  				cache.readFully(buf, 0, n);
+  			} catch (IOException ex) {
+  				return -1;
+  			}
+  		}
+  		position += n;
+  		return n;
+  	}
+
+  	public int write(byte[] buf, int size) {
+  		return -1;
+  	}
+
+  	public long seek(long offset, int whence) {
+  		long pos;
+  		switch(whence) {
+  			case SEEK_SET: pos = offset; break;
+  			case SEEK_CUR: pos = position+offset; break;
+  			case SEEK_END: pos = length+offset; break;
+  			case SEEK_SIZE: return length;
+  			default: return -1;
+  		}
+  		if (pos<0) {
+  			return -1;
+  		}
+  		position = pos;
+  		return position;
+  	}
+
+  	public int close() {
+  		return 0;
+  	}
+
+  	public boolean isStreamed(String url, int flags) {
+  		return false;
+  	}
+
+  }
+
+}
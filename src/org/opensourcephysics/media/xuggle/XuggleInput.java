@@ -0,0 +1,174 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+import com.xuggle.xuggler.io.IURLProtocolHandlerFactory;
+import com.xuggle.xuggler.io.URLProtocolManager;
+
+/**
+ * A source of video data for Xuggle containers. Each input is registered with
+ * the Xuggle URLProtocolManager under a private URL, and every container opened
+ * with that URL reads through a handler created by the input. Inputs count the
+ * bytes they read from the underlying device and the time spent reading them.
+ */
+public abstract class XuggleInput implements AutoCloseable {
+
+	static final String PROTOCOL = "ospxuggle"; //$NON-NLS-1$
+
+  private static Map<String, XuggleInput> inputs = new HashMap<String, XuggleInput>();
+  private static int nextID;
+  private static IURLProtocolHandlerFactory factory;
+
+  private String url;
+  private boolean closed;
+  private AtomicLong bytesRead = new AtomicLong();
+  private AtomicLong readCount = new AtomicLong();
+  private AtomicLong readNanos = new AtomicLong();
+  private AtomicLong maxReadNanos = new AtomicLong();
+
+  /**
+   * Creates a handler that reads this input for a single container.
+   *
+   * @return the handler
+   */
+  protected abstract IURLProtocolHandler createHandler();
+
+  /**
+   * Gets the URL that Xuggle containers open to read this input.
+   * The input is registered on first use.
+   *
+   * @return the URL, or null if the input has been closed
+   */
+  public String getURL() {
+  	synchronized(inputs) {
+  		if (closed) {
+  			// a closed input is never registered again
+  			return null;
+  		}
+  		if (url==null) {
+  			if (factory==null) {
+  				factory = new IURLProtocolHandlerFactory() {
+  					public IURLProtocolHandler getHandler(String protocol, String url, int flags) {
+  						XuggleInput input;
+  						synchronized(inputs) {
+  							input = inputs.get(url);
+  							if (input==null) { // url may be passed without protocol
+  								input = inputs.get(PROTOCOL+":"+url); //$NON-NLS-1$
+  							}
+  						}
+  						return input==null? null: input.createHandler();
+  					}
+  				};
+  				URLProtocolManager.getManager().registerFactory(PROTOCOL, factory);
+  			}
+  			url = PROTOCOL+":"+(nextID++); //$NON-NLS-1$
+  			inputs.put(url, this);
+  		}
+  		return url;
+  	}
+  }
+
+  /**
+   * Unregisters this input. Containers can no longer be opened with its URL.
+   */
+  public void close() {
+  	synchronized(inputs) {
+  		closed = true;
+  		if (url!=null) {
+  			inputs.remove(url);
+  			url = null;
+  		}
+  	}
+  }
+
+  /**
+   * Gets the number of bytes read from the underlying device.
+   *
+   * @return the byte count
+   */
+  public long getBytesRead() {
+  	return bytesRead.get();
+  }
+
+  /**
+   * Gets the number of reads from the underlying device.
+   *
+   * @return the read count
+   */
+  public long getReadCount() {
+  	return readCount.get();
+  }
+
+  /**
+   * Gets the total time spent reading from the underlying device.
+   *
+   * @return the read time in milliseconds
+   */
+  public double getReadTime() {
+  	return readNanos.get()/1000000.0;
+  }
+
+  /**
+   * Gets the longest single read from the underlying device.
+   *
+   * @return the maximum read latency in milliseconds
+   */
+  public double getMaxReadLatency() {
+  	return maxReadNanos.get()/1000000.0;
+  }
+
+  /**
+   * Records a read from the underlying device.
+   *
+   * @param bytes the number of bytes read
+   * @param nanos the time taken in nanoseconds
+   */
+  protected void countRead(long bytes, long nanos) {
+  	bytesRead.addAndGet(bytes);
+  	readCount.incrementAndGet();
+  	readNanos.addAndGet(nanos);
+  	long max = maxReadNanos.get();
+  	while (nanos>max && !maxReadNanos.compareAndSet(max, nanos)) {
+  		max = maxReadNanos.get();
+  	}
+  }
+
+  /**
+   * Returns a summary of the I/O counters.
+   *
+   * @return the summary
+   */
+  public String toString() {
+  	return getClass().getSimpleName()+" ["+getBytesRead()+" bytes in "+getReadCount() //$NON-NLS-1$ //$NON-NLS-2$
+  			+" reads, "+Math.round(getReadTime())+" ms, max latency " //$NON-NLS-1$ //$NON-NLS-2$
+  			+Math.round(getMaxReadLatency())+" ms]"; //$NON-NLS-1$
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xuggle.ferry.RefCounted;
+
+/**
+ * Live counts of the native Xuggle objects and the open AutoCloseable owners
+ * of the xuggle engine. Native objects are counted when made with track() and
+ * uncounted when deleted with release(), so a count that keeps growing under
+ * load is a leak. Owners are held weakly, so an owner that is never closed
+ * drops out of the report once it is garbage collected. The leak report
+ * lists both counts by type.
+ */
+public class XuggleNatives {
+
+  private static Map<String, AtomicInteger> liveObjects = new ConcurrentHashMap<String, AtomicInteger>();
+  // weak keys, so tracking never keeps an unclosed owner reachable
+  private static Map<AutoCloseable, Long> openOwners
+  		= Collections.synchronizedMap(new WeakHashMap<AutoCloseable, Long>());
+
+  private XuggleNatives() {}
+
+  /**
+   * Counts a native object made or referenced by the xuggle engine.
+   *
+   * @param obj the object (may be null)
+   * @return the object
+   */
+  static <T extends RefCounted> T track(T obj) {
+  	if (obj!=null) {
+  		getCounter(obj.getClass().getSimpleName()).incrementAndGet();
+  	}
+  	return obj;
+  }
+
+  /**
+   * Deletes a counted native object.
+   *
+   * @param obj the object (may be null)
+   */
+  static void release(RefCounted obj) {
+  	if (obj!=null) {
+  		obj.delete();
+  		getCounter(obj.getClass().getSimpleName()).decrementAndGet();
+  	}
+  }
+
+  /**
+   * Registers an owner of native objects when it is opened.
+   *
+   * @param owner the owner
+   */
+  static void opened(AutoCloseable owner) {
+  	synchronized(openOwners) {
+  		openOwners.put(owner, System.currentTimeMillis());
+  	}
+  }
+
+  /**
+   * Unregisters an owner of native objects when it is closed.
+   *
+   * @param owner the owner
+   */
+  static void closed(AutoCloseable owner) {
+  	synchronized(openOwners) {
+  		openOwners.remove(owner);
+  	}
+  }
+
+  /**
+   * Gets the total number of live native objects.
+   *
+   * @return the live object count
+   */
+  public static int getLiveCount() {
+  	int n = 0;
+  	for (AtomicInteger count: liveObjects.values()) {
+  		n += count.get();
+  	}
+  	return n;
+  }
+
+  /**
+   * Gets the number of live native objects of each type.
+   *
+   * @return a map of type name to count, sorted by name
+   */
+  public static Map<String, Integer> getLiveCounts() {
+  	Map<String, Integer> counts = new TreeMap<String, Integer>();
+  	for (Map.Entry<String, AtomicInteger> entry: liveObjects.entrySet()) {
+  		if (entry.getValue().get()!=0) {
+  			counts.put(entry.getKey(), entry.getValue().get());
+  		}
+  	}
+  	return counts;
+  }
+
+  /**
+   * Gets the number of open owners of each class.
+   *
+   * @return a map of class name to count, sorted by name
+   */
+  public static Map<String, Integer> getOpenOwners() {
+  	Map<String, Integer> counts = new TreeMap<String, Integer>();
+  	synchronized(openOwners) {
+  		for (AutoCloseable owner: openOwners.keySet()) {
+  			String name = owner.getClass().getSimpleName();
+  			Integer n = counts.get(name);
+  			counts.put(name, n==null? 1: n+1);
+  		}
+  	}
+  	return counts;
+  }
+
+  /**
+   * Gets a report of the live native objects and open owners, including
+   * the age of the oldest open owner.
+   *
+   * @return the report
+   */
+  public static String getLeakReport() {
+  	StringBuffer buf = new StringBuffer("Xuggle natives: "+getLiveCount()+" live"); //$NON-NLS-1$ //$NON-NLS-2$
+  	for (Map.Entry<String, Integer> entry: getLiveCounts().entrySet()) {
+  		buf.append("\n  "+entry.getKey()+": "+entry.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	long oldest = Long.MAX_VALUE;
+  	synchronized(openOwners) {
+  		buf.append("\nXuggle owners: "+openOwners.size()+" open"); //$NON-NLS-1$ //$NON-NLS-2$
+  		for (long time: openOwners.values()) {
+  			oldest = Math.min(oldest, time);
+  		}
+  	}
+  	for (Map.Entry<String, Integer> entry: getOpenOwners().entrySet()) {
+  		buf.append("\n  "+entry.getKey()+": "+entry.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	if (oldest<Long.MAX_VALUE) {
+  		buf.append("\n  oldest open for "+(System.currentTimeMillis()-oldest)/1000+" s"); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	return buf.toString();
+  }
+
+  /**
+   * Gets the counter for a native type.
+   *
+   * @param type the type name
+   * @return the counter
+   */
+  private static AtomicInteger getCounter(String type) {
+  	AtomicInteger count = liveObjects.get(type);
+  	if (count==null) {
+  		liveObjects.putIfAbsent(type, new AtomicInteger());
+  		count = liveObjects.get(type);
+  	}
+  	return count;
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Plane geometry of the pixel formats Xuggle pictures are decoded into.
+ * Xuggle allocates the planes of a picture contiguously in a single buffer,
+ * each plane occupying (line size x plane height) bytes.
+ */
+class XugglePlanes {
+
+  private XugglePlanes() {}
+
+  /**
+   * Gets the number of planes for a pixel format.
+   *
+   * @param type the pixel format
+   * @return the number of planes, or 0 if the format is not supported
+   */
+  static int getPlaneCount(IPixelFormat.Type type) {
+  	switch(type) {
+  		case YUV420P:
+  		case YUVJ420P:
+  		case YUV422P:
+  		case YUVJ422P:
+  		case YUV444P:
+  		case YUVJ444P:
+  			return 3;
+  		case GRAY8:
+  		case BGR24:
+  		case RGB24:
+  		case YUYV422:
+  		case ARGB:
+  		case RGBA:
+  		case ABGR:
+  		case BGRA:
+  			return 1;
+  		default:
+  			return 0;
+  	}
+  }
+
+  /**
+   * Gets the width in bytes of the visible data in a plane.
+   *
+   * @param type the pixel format
+   * @param plane the plane index
+   * @param width the picture width in pixels
+   * @return the plane width in bytes
+   */
+  static int getPlaneWidth(IPixelFormat.Type type, int plane, int width) {
+  	switch(type) {
+  		case BGR24:
+  		case RGB24:
+  			return 3*width;
+  		case YUYV422:
+  			return 2*width;
+  		case ARGB:
+  		case RGBA:
+  		case ABGR:
+  		case BGRA:
+  			return 4*width;
+  		case YUV420P:
+  		case YUVJ420P:
+  		case YUV422P:
+  		case YUVJ422P:
+  			return plane==0? width: (width+1)/2;
+  		default:
+  			return width;
+  	}
+  }
+
+  /**
+   * Gets the number of rows in a plane.
+   *
+   * @param type the pixel format
+   * @param plane the plane index
+   * @param height the picture height in pixels
+   * @return the plane height
+   */
+  static int getPlaneHeight(IPixelFormat.Type type, int plane, int height) {
+  	switch(type) {
+  		case YUV420P:
+  		case YUVJ420P:
+  			return plane==0? height: (height+1)/2;
+  		default:
+  			return height;
+  	}
+  }
+
+  /**
+   * Gets the size of a plane, including row padding, in the data buffer of a picture.
+   *
+   * @param picture the picture
+   * @param plane the plane index
+   * @return the size in bytes
+   */
+  static int getPlaneSize(IVideoPicture picture, int plane) {
+  	return picture.getDataLineSize(plane)
+  			*getPlaneHeight(picture.getPixelType(), plane, picture.getHeight());
+  }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * A thread-safe reader of the frames of a XuggleVideo. The reader owns a
+ * small pool of independent decoders, each guarded by its own lock. Frames
+ * are striped over the decoders by key packet run, so a thread reading
+ * through a GOP steps forward on the decoder already positioned in it, and
+ * threads reading different GOPs decode in parallel. A thread whose stripe
+ * is busy borrows any idle decoder before it waits. There is no lock shared
+ * by all threads, and decoded images are not cached.
+ */
+public class XuggleReader implements AutoCloseable {
+
+	private XuggleVideo video;
+	private String fileName;
+	private XuggleDecoder[] decoders;
+	private ReentrantLock[] locks;
+	private volatile boolean closed;
+	private AtomicLong reads = new AtomicLong();
+	private AtomicLong borrowedReads = new AtomicLong();
+	private AtomicLong waitedReads = new AtomicLong();
+
+  /**
+   * Creates a reader with one stripe per available processor.
+   *
+   * @param video the video, which must stay open while the reader is used
+   */
+  public XuggleReader(XuggleVideo video) {
+  	this(video, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a reader with a specified number of stripes. Decoders are opened
+   * when their stripe is first used.
+   *
+   * @param video the video, which must stay open while the reader is used
+   * @param stripes the number of decoders, typically the number of reading threads
+   */
+  public XuggleReader(XuggleVideo video, int stripes) {
+  	this.video = video;
+  	fileName = (String)video.getProperty("name"); //$NON-NLS-1$
+  	stripes = Math.max(1, stripes);
+  	decoders = new XuggleDecoder[stripes];
+  	locks = new ReentrantLock[stripes];
+  	for (int i = 0; i < stripes; i++) {
+  		locks[i] = new ReentrantLock();
+  	}
+  }
+
+  /**
+   * Gets the image for a frame. May be called by any number of threads.
+   *
+   * @param frameNumber the frame number
+   * @return the image, or null if unable to decode or closed
+   */
+  public BufferedImage getImage(int frameNumber) {
+  	int stripe = lock(frameNumber);
+  	if (stripe<0) return null;
+  	try {
+  		XuggleDecoder decoder = getDecoder(stripe);
+  		if (decoder==null || !decoder.loadPicture(frameNumber)) {
+  			return null;
+  		}
+  		return decoder.getBufferedImage();
+  	} finally {
+  		locks[stripe].unlock();
+  	}
+  }
+
+  /**
+   * Decodes a frame and passes its raw picture planes to a PictureReader.
+   * May be called by any number of threads. The planes are valid only for
+   * the duration of the callback.
+   *
+   * @param frameNumber the frame number
+   * @param reader the reader
+   * @return true if the frame was decoded and read
+   */
+  public boolean readPicture(int frameNumber, XuggleVideo.PictureReader reader) {
+  	int stripe = lock(frameNumber);
+  	if (stripe<0) return false;
+  	try {
+  		XuggleDecoder decoder = getDecoder(stripe);
+  		return decoder!=null && decoder.readPicture(frameNumber, reader);
+  	} finally {
+  		locks[stripe].unlock();
+  	}
+  }
+
+  /**
+   * Gets the number of stripes, ie the maximum number of frames decoded at once.
+   *
+   * @return the stripe count
+   */
+  public int getStripeCount() {
+  	return decoders.length;
+  }
+
+  /**
+   * Gets the number of frames read.
+   *
+   * @return the read count
+   */
+  public long getReadCount() {
+  	return reads.get();
+  }
+
+  /**
+   * Gets the number of reads that borrowed the decoder of another stripe
+   * because their own was busy.
+   *
+   * @return the borrowed read count
+   */
+  public long getBorrowedReadCount() {
+  	return borrowedReads.get();
+  }
+
+  /**
+   * Gets the number of reads that waited because every decoder was busy.
+   *
+   * @return the waited read count
+   */
+  public long getWaitedReadCount() {
+  	return waitedReads.get();
+  }
+
+  /**
+   * Closes this reader and its decoders. Reads in progress are completed first.
+   */
+  public void close() {
+  	closed = true;
+  	for (int i = 0; i < decoders.length; i++) {
+  		locks[i].lock();
+  		try {
+  			if (decoders[i]!=null) {
+  				decoders[i].dispose();
+  				decoders[i] = null;
+  			}
+  		} finally {
+  			locks[i].unlock();
+  		}
+  	}
+  	OSPLog.finer("Xuggle reader closed after "+reads+" reads, "+borrowedReads //$NON-NLS-1$ //$NON-NLS-2$
+  			+" borrowed, "+waitedReads+" waited"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Locks a stripe to read a frame: the home stripe of the frame's key packet
+   * run if free, else any free stripe, else the home stripe when it is free.
+   *
+   * @param frameNumber the frame number
+   * @return the locked stripe, or -1 if the frame is invalid or the reader closed
+   */
+  private int lock(int frameNumber) {
+  	XuggleFrameIndex index = video.index;
+  	if (closed || index==null || frameNumber<0 || frameNumber>=index.getFrameCount()) {
+  		return -1;
+  	}
+  	reads.incrementAndGet();
+  	int home = index.getKeyRun(frameNumber)%decoders.length;
+  	if (!locks[home].tryLock()) {
+  		for (int i = 1; i < decoders.length; i++) {
+  			int stripe = (home+i)%decoders.length;
+  			if (locks[stripe].tryLock()) {
+  				borrowedReads.incrementAndGet();
+  				return checkOpen(stripe);
+  			}
+  		}
+  		waitedReads.incrementAndGet();
+  		locks[home].lock();
+  	}
+  	return checkOpen(home);
+  }
+
+  /**
+   * Unlocks a locked stripe if the reader has been closed.
+   *
+   * @param stripe the locked stripe
+   * @return the stripe, or -1 if closed
+   */
+  private int checkOpen(int stripe) {
+  	if (closed) {
+  		locks[stripe].unlock();
+  		return -1;
+  	}
+  	return stripe;
+  }
+
+  /**
+   * Gets the decoder of a locked stripe, opening it if needed.
+   *
+   * @param stripe the stripe
+   * @return the decoder, or null if it could not be opened or the video is disposed
+   */
+  private XuggleDecoder getDecoder(int stripe) {
+  	XuggleSource source = video.source;
+  	if (decoders[stripe]==null && source!=null) {
+  		try {
+  			XuggleDecoder decoder = source.createDecoder(fileName);
+  			decoder.loadNextPacket();
+  			decoders[stripe] = decoder;
+  		} catch (IOException ex) {
+  			OSPLog.warning(ex.getMessage());
+  		}
+  	}
+  	return decoders[stripe];
+  }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensourcephysics.controls.OSPLog;
+
+/**
+ * A video file shared by all XuggleVideos that display it. A source holds the
+ * frame index, a small cache of decoded images and a pool of decoders that
+ * are leased for each frame read, so memory and open time do not grow with
+ * the number of views of a file.
+ */
+class XuggleSource {
+
+	// maximum number of idle decoders kept open per file
+	static final int MAX_IDLE_DECODERS = 3;
+	// number of decoded images cached per file
+	static final int IMAGE_CACHE_SIZE = 4;
+	// number of key frame images cached per file for scrubbing
+	static final int KEY_IMAGE_CACHE_SIZE = 8;
+
+  private static Map<String, XuggleSource> sources = new HashMap<String, XuggleSource>();
+
+  // held while the frame index is being built
+  final ReentrantLock indexLock = new ReentrantLock();
+
+  private String key;
+  private String path;
+  private boolean isLocal;
+  private XuggleInput input;
+  private int refCount;
+  private AtomicInteger reloadCount = new AtomicInteger();
+  private AtomicLong nonVideoPackets = new AtomicLong();
+  private AtomicLong nonVideoBytes = new AtomicLong();
+  private AtomicLong nonVideoNanos = new AtomicLong();
+  private boolean released;
+  private XuggleFrameIndex index;
+  private ArrayList<XuggleDecoder> idleDecoders = new ArrayList<XuggleDecoder>();
+  private Map<Integer, BufferedImage> imageCache
+  		= new LinkedHashMap<Integer, BufferedImage>(IMAGE_CACHE_SIZE, 0.75f, true) {
+  	protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+  		return size()>IMAGE_CACHE_SIZE;
+  	}
+  };
+  private Map<Long, BufferedImage> keyImageCache
+  		= new LinkedHashMap<Long, BufferedImage>(KEY_IMAGE_CACHE_SIZE, 0.75f, true) {
+  	protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+  		return size()>KEY_IMAGE_CACHE_SIZE;
+  	}
+  };
+
+  /**
+   * Gets the shared source for a video path, creating it if needed. Each call
+   * must be balanced by a call to release().
+   *
+   * @param path the absolute path (local files) or URL (other resources)
+   * @param isLocal true if path is a local file
+   * @return the source
+   */
+  static XuggleSource getSource(String path, boolean isLocal) {
+  	String key = path;
+  	if (isLocal) {
+  		// a modified file is a different source
+  		File file = new File(path);
+  		key += "|"+file.length()+"|"+file.lastModified(); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	XuggleSource source;
+  	synchronized(sources) {
+  		source = sources.get(key);
+  		if (source!=null) {
+  			source.refCount++;
+  			return source;
+  		}
+  	}
+  	// create the input outside the lock: a remote range probe may block
+  	XuggleInput input = isLocal? new XuggleFileInput(path):
+  			XuggleHttpInput.create(path); // null if the server does not support range requests
+  	synchronized(sources) {
+  		source = sources.get(key);
+  		if (source==null) {
+  			source = new XuggleSource(key, path, isLocal, input);
+  			sources.put(key, source);
+  			input = null;
+  		}
+  		source.refCount++;
+  	}
+  	if (input!=null) {
+  		// another thread registered the source first
+  		input.close();
+  	}
+  	return source;
+  }
+
+  private XuggleSource(String key, String path, boolean isLocal, XuggleInput input) {
+  	this.key = key;
+  	this.path = path;
+  	this.isLocal = isLocal;
+  	this.input = input;
+  }
+
+  /**
+   * Releases a reference to this source. The last release disposes of the
+   * pooled decoders and removes this source from the registry.
+   */
+  void release() {
+  	synchronized(sources) {
+  		if (--refCount>0) return;
+  		sources.remove(key);
+  	}
+  	synchronized(this) {
+  		released = true;
+  		for (XuggleDecoder decoder: idleDecoders) {
+  			decoder.dispose();
+  		}
+  		idleDecoders.clear();
+  		imageCache.clear();
+  		keyImageCache.clear();
+  	}
+  	if (nonVideoPackets.get()>0) {
+  		OSPLog.finer("Xuggle read "+nonVideoPackets+" non-video packets (" //$NON-NLS-1$ //$NON-NLS-2$
+  				+nonVideoBytes+" bytes, "+nonVideoNanos.get()/1000000+" ms) in "+path); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	if (input!=null) {
+  		OSPLog.finer("Xuggle input closed: "+input); //$NON-NLS-1$
+  		input.close();
+  	}
+  }
+
+  /**
+   * Gets the absolute path (local files) or URL (other resources) of the video.
+   *
+   * @return the path
+   */
+  String getPath() {
+  	return path;
+  }
+
+  /**
+   * Determines if the video is a local file.
+   *
+   * @return true if local
+   */
+  boolean isLocal() {
+  	return isLocal;
+  }
+
+  /**
+   * Gets the number of container reloads made by decoders of this source.
+   *
+   * @return the reload count
+   */
+  int getReloadCount() {
+  	return reloadCount.get();
+  }
+
+  /**
+   * Records a container reload.
+   */
+  void countReload() {
+  	reloadCount.incrementAndGet();
+  }
+
+  /**
+   * Records the read of a packet that is not in the video stream.
+   *
+   * @param bytes the packet size
+   * @param nanos the time taken to read the packet in nanoseconds
+   */
+  void countNonVideoPacket(int bytes, long nanos) {
+  	nonVideoPackets.incrementAndGet();
+  	nonVideoBytes.addAndGet(bytes);
+  	nonVideoNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Gets the number of bytes of non-video packets read.
+   *
+   * @return the byte count
+   */
+  long getNonVideoBytes() {
+  	return nonVideoBytes.get();
+  }
+
+  /**
+   * Gets the time spent reading non-video packets.
+   *
+   * @return the time in nanoseconds
+   */
+  long getNonVideoNanos() {
+  	return nonVideoNanos.get();
+  }
+
+  /**
+   * Gets the input through which decoders read the video.
+   *
+   * @return the input, or null if decoders open the path directly
+   */
+  XuggleInput getInput() {
+  	return input;
+  }
+
+  /**
+   * Gets the frame index.
+   *
+   * @return the index, or null if not yet built
+   */
+  synchronized XuggleFrameIndex getIndex() {
+  	return index;
+  }
+
+  /**
+   * Sets the frame index once it has been built.
+   *
+   * @param index the index
+   */
+  synchronized void setIndex(XuggleFrameIndex index) {
+  	this.index = index;
+  }
+
+  /**
+   * Creates a new open decoder that is not part of the pool.
+   *
+   * @param fileName the video name used in error messages
+   * @return the decoder
+   * @throws IOException if the source has been released or the decoder could not be opened
+   */
+  XuggleDecoder createDecoder(String fileName) throws IOException {
+  	checkReleased();
+  	XuggleDecoder decoder = new XuggleDecoder(this);
+  	decoder.open(fileName);
+  	decoder.index = getIndex();
+  	return decoder;
+  }
+
+  /**
+   * Leases a decoder to read a specified frame. An idle decoder that can step
+   * forward to the frame is preferred, then the most recently used idle decoder.
+   * A new decoder is opened only when none is idle. The decoder must be
+   * returned with releaseDecoder().
+   *
+   * @param frameNumber the frame number to be read
+   * @param fileName the video name used in error messages
+   * @return the decoder
+   * @throws IOException if the source has been released or a new decoder could not be opened
+   */
+  XuggleDecoder leaseDecoder(int frameNumber, String fileName) throws IOException {
+  	synchronized(this) {
+  		checkReleased();
+  		for (int i = 0; i < idleDecoders.size(); i++) {
+  			if (idleDecoders.get(i).isPositionedFor(frameNumber)) {
+  				return idleDecoders.remove(i);
+  			}
+  		}
+  		if (!idleDecoders.isEmpty()) {
+  			return idleDecoders.remove(0);
+  		}
+  	}
+  	XuggleDecoder decoder = createDecoder(fileName);
+  	decoder.loadNextPacket();
+  	return decoder;
+  }
+
+  /**
+   * Throws an exception if this source has been released, since its input
+   * is closed and its decoders disposed.
+   *
+   * @throws IOException if released
+   */
+  private synchronized void checkReleased() throws IOException {
+  	if (released) {
+  		throw new IOException("video source has been released: "+path); //$NON-NLS-1$
+  	}
+  }
+
+  /**
+   * Returns a leased decoder to the pool.
+   *
+   * @param decoder the decoder
+   */
+  synchronized void releaseDecoder(XuggleDecoder decoder) {
+  	if (released || idleDecoders.size()==MAX_IDLE_DECODERS) {
+  		decoder.dispose();
+  	}
+  	else {
+  		// most recently used first
+  		idleDecoders.add(0, decoder);
+  	}
+  }
+
+  /**
+   * Gets a cached decoded image.
+   *
+   * @param frameNumber the frame number
+   * @return the image, or null if not cached
+   */
+  synchronized BufferedImage getCachedImage(int frameNumber) {
+  	return imageCache.get(frameNumber);
+  }
+
+  /**
+   * Caches a decoded image.
+   *
+   * @param frameNumber the frame number
+   * @param image the image
+   */
+  synchronized void cacheImage(int frameNumber, BufferedImage image) {
+  	imageCache.put(frameNumber, image);
+  }
+
+  /**
+   * Gets a cached key frame image.
+   *
+   * @param keyTimeStamp the key packet timestamp
+   * @return the image, or null if not cached
+   */
+  synchronized BufferedImage getKeyImage(long keyTimeStamp) {
+  	return keyImageCache.get(keyTimeStamp);
+  }
+
+  /**
+   * Caches a key frame image.
+   *
+   * @param keyTimeStamp the key packet timestamp
+   * @param image the image
+   */
+  synchronized void cacheKeyImage(long keyTimeStamp, BufferedImage image) {
+  	keyImageCache.put(keyTimeStamp, image);
+  }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opensourcephysics.media.core.VideoFileFilter;
+
+/**
+ * A benchmark and regression check for frame stepping. Synthetic videos with
+ * the frame number drawn into each frame as a row of black and white blocks
+ * are recorded with XuggleVideoRecorder for each container and key frame
+ * interval. Each video is then stepped forward and backward one frame at a
+ * time with XuggleVideo.setFrameNumber. Every decoded frame is checked against
+ * the requested frame number, and the step latency percentiles are reported.
+ */
+public class XuggleStepBenchmark {
+
+	// number of bits in the frame number marker
+	static final int MARKER_BITS = 16;
+	// size in pixels of each marker block
+	static final int MARKER_SIZE = 16;
+
+	private int width = 320, height = 240;
+	private int frameCount = 150;
+	private double frameDuration = 1000/30.0;
+	private File directory = new File(System.getProperty("java.io.tmpdir")); //$NON-NLS-1$
+
+  /**
+   * Sets the frame size of the synthetic videos.
+   *
+   * @param w the width (at least MARKER_BITS*MARKER_SIZE)
+   * @param h the height
+   */
+  public void setSize(int w, int h) {
+  	width = Math.max(w, MARKER_BITS*MARKER_SIZE);
+  	height = Math.max(h, MARKER_SIZE);
+  }
+
+  /**
+   * Sets the number of frames in the synthetic videos.
+   *
+   * @param n the frame count
+   */
+  public void setFrameCount(int n) {
+  	frameCount = Math.max(2, n);
+  }
+
+  /**
+   * Sets the directory for the synthetic videos.
+   *
+   * @param dir the directory
+   */
+  public void setDirectory(File dir) {
+  	directory = dir;
+  }
+
+  /**
+   * Records a synthetic video.
+   *
+   * @param container the container type and extension, eg "mp4"
+   * @param gop the key frame interval
+   * @return the path of the video
+   * @throws IOException
+   */
+  public String record(String container, int gop) throws IOException {
+  	XuggleVideoType type = new XuggleVideoType(
+  			new VideoFileFilter(container, new String[] {container}));
+  	XuggleVideoRecorder recorder = new XuggleVideoRecorder(type);
+  	recorder.setKeyFrameInterval(gop);
+  	recorder.setFrameDuration(frameDuration);
+  	recorder.createVideo();
+  	for (int i = 0; i < frameCount; i++) {
+  		recorder.addFrame(createFrame(i));
+  	}
+  	File file = new File(directory, "step_"+gop+"."+container); //$NON-NLS-1$ //$NON-NLS-2$
+  	return recorder.saveVideo(file.getAbsolutePath());
+  }
+
+  /**
+   * Steps through a video forward and then backward, checking each frame.
+   *
+   * @param path the video path
+   * @return the result
+   * @throws IOException
+   */
+  public Result step(String path) throws IOException {
+  	XuggleVideo video = new XuggleVideo(path, false);
+  	Result result = new Result(path);
+  	int n = video.getFrameCount();
+  	result.frames = n;
+  	long[] forward = new long[n-1];
+  	long[] backward = new long[n-1];
+  	try {
+  		for (int i = 1; i < n; i++) {
+  			forward[i-1] = stepTo(video, i, result);
+  		}
+  		for (int i = n-2; i >= 0; i--) {
+  			backward[n-2-i] = stepTo(video, i, result);
+  		}
+  	} finally {
+  		video.dispose();
+  	}
+  	result.forward = getPercentiles(forward);
+  	result.backward = getPercentiles(backward);
+  	return result;
+  }
+
+  /**
+   * Sets the frame number and checks the marker of the displayed image.
+   *
+   * @param video the video
+   * @param frameNumber the frame number
+   * @param result the result to record mismatches in
+   * @return the step latency in nanoseconds
+   */
+  private long stepTo(XuggleVideo video, int frameNumber, Result result) {
+  	long t0 = System.nanoTime();
+  	video.setFrameNumber(frameNumber);
+  	BufferedImage image = video.getImage();
+  	long nanos = System.nanoTime()-t0;
+  	int marker = image==null? -1: readMarker(image);
+  	if (marker!=frameNumber) {
+  		result.errors++;
+  		if (result.firstError==null) {
+  			result.firstError = "frame "+frameNumber+" shows "+marker; //$NON-NLS-1$ //$NON-NLS-2$
+  		}
+  	}
+  	return nanos;
+  }
+
+  /**
+   * Creates a synthetic frame with a frame number marker.
+   *
+   * @param frameNumber the frame number
+   * @return the frame image
+   */
+  BufferedImage createFrame(int frameNumber) {
+  	BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+  	Graphics2D g = image.createGraphics();
+  	// moving background so encoders see motion between frames
+  	g.setColor(Color.GRAY);
+  	g.fillRect(0, 0, width, height);
+  	g.setColor(Color.DARK_GRAY);
+  	int x = (frameNumber*4)%width;
+  	g.fillRect(x, MARKER_SIZE*2, width/8, height-MARKER_SIZE*3);
+  	for (int bit = 0; bit < MARKER_BITS; bit++) {
+  		g.setColor((frameNumber>>bit & 1)==1? Color.WHITE: Color.BLACK);
+  		g.fillRect(bit*MARKER_SIZE, 0, MARKER_SIZE, MARKER_SIZE);
+  	}
+  	g.dispose();
+  	return image;
+  }
+
+  /**
+   * Reads the frame number marker of a decoded image.
+   *
+   * @param image the image
+   * @return the frame number
+   */
+  static int readMarker(BufferedImage image) {
+  	int n = 0;
+  	for (int bit = 0; bit < MARKER_BITS; bit++) {
+  		int rgb = image.getRGB(bit*MARKER_SIZE+MARKER_SIZE/2, MARKER_SIZE/2);
+  		int luma = ((rgb>>16 & 0xff)+(rgb>>8 & 0xff)+(rgb & 0xff))/3;
+  		if (luma>128) {
+  			n |= 1<<bit;
+  		}
+  	}
+  	return n;
+  }
+
+  /**
+   * Gets the 50th, 90th and 99th percentiles and maximum of a set of latencies.
+   *
+   * @param nanos the latencies in nanoseconds
+   * @return double[] {p50, p90, p99, max} in milliseconds
+   */
+  static double[] getPercentiles(long[] nanos) {
+  	if (nanos.length==0) {
+  		return new double[4];
+  	}
+  	long[] sorted = nanos.clone();
+  	Arrays.sort(sorted);
+  	double[] p = {0.5, 0.9, 0.99, 1};
+  	double[] ms = new double[p.length];
+  	for (int i = 0; i < p.length; i++) {
+  		int k = (int)Math.ceil(p[i]*sorted.length)-1;
+  		ms[i] = sorted[Math.max(0, k)]/1000000.0;
+  	}
+  	return ms;
+  }
+
+  /**
+   * The result of stepping through one video.
+   */
+  public static class Result {
+
+  	String path;
+  	int frames, errors;
+  	String firstError;
+  	double[] forward, backward;
+
+  	Result(String path) {
+  		this.path = path;
+  	}
+
+  	/**
+  	 * Gets the number of frames that did not match the requested frame number.
+  	 *
+  	 * @return the error count
+  	 */
+  	public int getErrorCount() {
+  		return errors;
+  	}
+
+  	@Override
+  	public String toString() {
+  		return new File(path).getName()
+  				+" frames "+frames+" errors "+errors //$NON-NLS-1$ //$NON-NLS-2$
+  				+(firstError==null? "": " ("+firstError+")") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  				+" +1 ms p50/p90/p99/max "+format(forward) //$NON-NLS-1$
+  				+" -1 ms p50/p90/p99/max "+format(backward); //$NON-NLS-1$
+  	}
+
+  	private static String format(double[] ms) {
+  		StringBuffer buf = new StringBuffer();
+  		for (int i = 0; i < ms.length; i++) {
+  			if (i>0) buf.append('/');
+  			buf.append(Math.round(ms[i]*100)/100.0);
+  		}
+  		return buf.toString();
+  	}
+  }
+
+  /**
+   * Records and steps through synthetic videos for each container and key
+   * frame interval. Exits with status 2 if any frame does not match.
+   *
+   * @param args [-containers mp4,mov,...] [-gops 1,10,...] [-frames n] [-size wxh] [-out dir]
+   */
+  public static void main(String[] args) {
+  	if (System.getProperty("java.awt.headless")==null) { //$NON-NLS-1$
+  		System.setProperty("java.awt.headless", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+  	}
+  	XuggleStepBenchmark benchmark = new XuggleStepBenchmark();
+  	String[] containers = {"mp4", "mov", "flv", "mpg", "ogg"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+  	String[] gops = {"1", "10", "60"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  	try {
+	  	for (int i = 0; i < args.length; i++) {
+	  		String arg = args[i];
+	  		if (arg.equals("-containers")) { //$NON-NLS-1$
+	  			containers = args[++i].split(","); //$NON-NLS-1$
+	  		}
+	  		else if (arg.equals("-gops")) { //$NON-NLS-1$
+	  			gops = args[++i].split(","); //$NON-NLS-1$
+	  		}
+	  		else if (arg.equals("-frames")) { //$NON-NLS-1$
+	  			benchmark.setFrameCount(Integer.parseInt(args[++i]));
+	  		}
+	  		else if (arg.equals("-size")) { //$NON-NLS-1$
+	  			String[] size = args[++i].split("x"); //$NON-NLS-1$
+	  			benchmark.setSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+	  		}
+	  		else if (arg.equals("-out")) { //$NON-NLS-1$
+	  			File dir = new File(args[++i]);
+	  			dir.mkdirs();
+	  			benchmark.setDirectory(dir);
+	  		}
+	  		else throw new IllegalArgumentException(arg);
+	  	}
+  	} catch (Exception ex) {
+  		System.err.println("usage: XuggleStepBenchmark [-containers mp4,mov,...] [-gops 1,10,...]" //$NON-NLS-1$
+  				+" [-frames n] [-size wxh] [-out dir]"); //$NON-NLS-1$
+  		System.exit(1);
+  	}
+  	int failed = 0;
+  	for (String container: containers) {
+  		for (String gop: gops) {
+  			try {
+  				String path = benchmark.record(container, Integer.parseInt(gop));
+  				Result result = benchmark.step(path);
+  				System.out.println(container+" gop "+gop+": "+result); //$NON-NLS-1$ //$NON-NLS-2$
+  				if (result.errors>0) failed++;
+  			} catch (Exception ex) {
+  				System.out.println(container+" gop "+gop+": failed "+ex); //$NON-NLS-1$ //$NON-NLS-2$
+  				failed++;
+  			}
+  		}
+  	}
+  	System.exit(failed==0? 0: 2);
+  }
+
+}
@@ -26,18 +26,18 @@ package org.opensourcephysics.media.xuggle;
 
 import java.awt.Dimension;
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
@@ -54,71 +54,98 @@ import org.opensourcephysics.media.core.VideoType;
 import org.opensourcephysics.tools.Resource;
 import org.opensourcephysics.tools.ResourceLoader;
 
-import com.xuggle.xuggler.ICodec;
-import com.xuggle.xuggler.IContainer;
 import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IPixelFormat;
 import com.xuggle.xuggler.IRational;
-import com.xuggle.xuggler.IStream;
-import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
-import com.xuggle.xuggler.IVideoResampler;
-import com.xuggle.xuggler.video.ConverterFactory;
-import com.xuggle.xuggler.video.IConverter;
 
 /**
  * A class to display videos using the Xuggle library. Xuggle in turn
- * uses FFMpeg as its video engine.
+ * uses FFMpeg as its video engine. Closing a video releases its decoders
+ * and their native objects.
  */
-public class XuggleVideo extends VideoAdapter {
+public class XuggleVideo extends VideoAdapter implements AutoCloseable {
 	
-	IContainer container;
-  int streamIndex = -1;
-  IStreamCoder videoCoder;
-  IVideoResampler resampler;
-  IPacket packet;
-  IVideoPicture picture;
-  IStream stream;
-  IRational timebase;
-  IConverter converter;
-  // maps frame number to timestamp of displayed packet (last packet loaded)
-  Map<Integer, Long> frameTimeStamps = new HashMap<Integer, Long>();
-  // maps frame number to timestamp of key packet (first packet loaded)
-  Map<Integer, Long> keyTimeStamps = new HashMap<Integer, Long>();
-  // array of frame start times in milliseconds
-  private double[] startTimes;
+	// interval at which a wait for another view's frame index checks for cancellation, in ms
+	static final long INDEX_WAIT_POLL = 100;
+
+  XuggleSource source;
+  XuggleFrameIndex index;
   private long systemStartPlayTime;
   private double frameStartPlayTime;
   private boolean playSmoothly = true;
   private int frame, prevFrame;
   private Timer failDetectTimer;
+  private AtomicBoolean loadCanceled;
+  private boolean scrubbing, approximateImage;
+  private boolean reverse;
+  private XuggleGopBuffer reverseBuffer;
 	
   /**
-   * Creates a XuggleVideo and loads a video file specified by name
+   * Creates a XuggleVideo and loads a video file specified by name.
+   * Tracker UI hooks are attached unless AWT is headless.
    *
    * @param fileName the name of the video file
    * @throws IOException
    */
   public XuggleVideo(final String fileName) throws IOException {
-    Frame[] frames = Frame.getFrames();
-    for(int i = 0, n = frames.length; i<n; i++) {
-       if (frames[i].getName().equals("Tracker")) { //$NON-NLS-1$
-      	 addPropertyChangeListener("progress", (PropertyChangeListener)frames[i]); //$NON-NLS-1$
-      	 addPropertyChangeListener("stalled", (PropertyChangeListener)frames[i]); //$NON-NLS-1$
-      	 break;
-       }
-    }
-    // timer to detect failures
-		failDetectTimer = new Timer(6000, new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-      	if (frame==prevFrame) {
-      		firePropertyChange("stalled", null, fileName); //$NON-NLS-1$
-      		failDetectTimer.stop();
-      	}
-      	prevFrame = frame;
-      }
-    });
-		failDetectTimer.setRepeats(true);
+  	this(fileName, !GraphicsEnvironment.isHeadless());
+  }
+
+  /**
+   * Creates a XuggleVideo and loads a video file specified by name.
+   * Without UI hooks the video is a pure decoding engine that touches no
+   * AWT or Swing resources while loading, so it may be created in headless
+   * server processes and on any thread.
+   *
+   * @param fileName the name of the video file
+   * @param ui true to attach the Tracker progress listener and stall detection timer
+   * @throws IOException
+   */
+  public XuggleVideo(final String fileName, boolean ui) throws IOException {
+  	this(fileName, ui, null, null);
+  }
+
+  /**
+   * Creates a XuggleVideo with its own progress listener and cancellation flag.
+   *
+   * @param fileName the name of the video file
+   * @param ui true to attach the Tracker progress listener and stall detection timer
+   * @param listener a listener for "progress" events while loading (may be null)
+   * @param canceled a flag that cancels loading when set (may be null)
+   * @throws IOException
+   */
+  XuggleVideo(final String fileName, boolean ui, PropertyChangeListener listener,
+  		AtomicBoolean canceled) throws IOException {
+  	loadCanceled = canceled;
+  	if (listener!=null) {
+  		addPropertyChangeListener("progress", listener); //$NON-NLS-1$
+  	}
+  	if (ui) {
+	    Frame[] frames = Frame.getFrames();
+	    for(int i = 0, n = frames.length; i<n; i++) {
+	       if (frames[i].getName().equals("Tracker")) { //$NON-NLS-1$
+	      	 addPropertyChangeListener("progress", (PropertyChangeListener)frames[i]); //$NON-NLS-1$
+	      	 addPropertyChangeListener("stalled", (PropertyChangeListener)frames[i]); //$NON-NLS-1$
+	      	 break;
+	       }
+	    }
+	    // timer to detect failures
+			failDetectTimer = new Timer(6000, new ActionListener() {
+	      public void actionPerformed(ActionEvent e) {
+	      	if (frame==prevFrame) {
+	      		firePropertyChange("stalled", null, fileName); //$NON-NLS-1$
+	      		failDetectTimer.stop();
+	      	}
+	      	prevFrame = frame;
+	      }
+	    });
+			failDetectTimer.setRepeats(true);
+  	}
+  	else {
+  		// no garbage collection after every frame
+  		playSmoothly = false;
+  	}
     load(fileName);
   }
 
@@ -129,7 +156,10 @@ public class XuggleVideo extends VideoAdapter {
     if(getFrameCount()==1) {
       return;
     }
-    int n = getFrameNumber()+1;
+    int n = reverse? getFrameNumber()-1: getFrameNumber()+1;
+    if (reverse && n<getStartFrameNumber()) {
+    	n = getEndFrameNumber();
+    }
     playing = true;
 	  support.firePropertyChange("playing", null, new Boolean(true)); //$NON-NLS-1$
 	  startPlayingAtFrame(n);
@@ -151,8 +181,12 @@ public class XuggleVideo extends VideoAdapter {
   public void setFrameNumber(int n) {
   	if (n==getFrameNumber()) return;
     super.setFrameNumber(n);
-    BufferedImage bi = getImage(getFrameNumber());
+    boolean scrub = scrubbing && !isPlaying();
+    BufferedImage bi = scrub? getScrubImage(getFrameNumber()):
+    		reverse && isPlaying()? getReverseImage(getFrameNumber()):
+    		getImage(getFrameNumber());
     if (bi!=null) {
+    	approximateImage = scrub && bi!=source.getCachedImage(getFrameNumber());
 	    rawImage = bi;
 	    isValidImage = false;
 	    isValidFilteredImage = false;
@@ -168,6 +202,61 @@ public class XuggleVideo extends VideoAdapter {
     }
   }
   
+  /**
+   * Sets the scrub mode. While scrubbing, eg when a slider is dragged, frames
+   * not already decoded are displayed as the key frame they follow, so each
+   * step costs at most one key frame decode whatever the GOP length. Ending
+   * scrub mode refines the display to the exact current frame.
+   *
+   * @param scrub true to start scrubbing, false to stop
+   */
+  public void setScrubbing(boolean scrub) {
+  	if (scrubbing==scrub) return;
+  	scrubbing = scrub;
+  	if (!scrub && approximateImage) {
+  		approximateImage = false;
+      BufferedImage bi = getImage(getFrameNumber());
+      if (bi!=null) {
+  	    rawImage = bi;
+  	    isValidImage = false;
+  	    isValidFilteredImage = false;
+  	    firePropertyChange("framenumber", null, new Integer(getFrameNumber())); //$NON-NLS-1$
+      }
+  	}
+  }
+
+  /**
+   * Gets the scrub mode.
+   *
+   * @return true if scrubbing
+   */
+  public boolean isScrubbing() {
+  	return scrubbing;
+  }
+
+  /**
+   * Sets the play direction. Reverse playback decodes frames forward a GOP at
+   * a time into a buffer and prefetches the previous GOP on another thread.
+   *
+   * @param reverse true to play backward
+   */
+  public void setReverse(boolean reverse) {
+  	this.reverse = reverse;
+  	if (!reverse && reverseBuffer!=null) {
+  		reverseBuffer.clear();
+  		reverseBuffer = null;
+  	}
+  }
+
+  /**
+   * Gets the play direction.
+   *
+   * @return true if playing backward
+   */
+  public boolean isReverse() {
+  	return reverse;
+  }
+
   /**
    * Gets the start time of the specified frame in milliseconds.
    *
@@ -175,10 +264,7 @@ public class XuggleVideo extends VideoAdapter {
    * @return the start time of the frame in milliseconds, or -1 if not known
    */
   public double getFrameTime(int n) {
-    if((n>=startTimes.length)||(n<0)) {
-      return -1;
-    }
-    return startTimes[n];
+    return index.getFrameTime(n);
   }
 
   /**
@@ -196,13 +282,9 @@ public class XuggleVideo extends VideoAdapter {
    * @param millis the desired time in milliseconds
    */
   public void setTime(double millis) {
-    millis = Math.abs(millis);
-    for(int i = 0; i<startTimes.length; i++) {
-      double t = startTimes[i];
-      if(millis<t) { // find first frame with later start time
-        setFrameNumber(i-1);
-        break;
-      }
+    int n = index.getFrameNumberBefore(Math.abs(millis));
+    if (n>-1) {
+      setFrameNumber(n);
     }
   }
 
@@ -221,13 +303,9 @@ public class XuggleVideo extends VideoAdapter {
    * @param millis the desired start time in milliseconds
    */
   public void setStartTime(double millis) {
-    millis = Math.abs(millis);
-    for(int i = 0; i<startTimes.length; i++) {
-      double t = startTimes[i];
-      if(millis<t) { // find first frame with later start time
-        setStartFrameNumber(i-1);
-        break;
-      }
+    int n = index.getFrameNumberBefore(Math.abs(millis));
+    if (n>-1) {
+      setStartFrameNumber(n);
     }
   }
 
@@ -249,14 +327,9 @@ public class XuggleVideo extends VideoAdapter {
    * @param millis the desired end time in milliseconds
    */
   public void setEndTime(double millis) {
-    millis = Math.abs(millis);
-    millis = Math.min(getDuration(), millis);
-    for(int i = 0; i<startTimes.length; i++) {
-      double t = startTimes[i];
-      if(millis<t) { // find first frame with later start time
-        setEndFrameNumber(i-1);
-        break;
-      }
+    int n = index.getFrameNumberBefore(Math.abs(millis));
+    if (n>-1) {
+      setEndFrameNumber(n);
     }
   }
 
@@ -266,11 +339,35 @@ public class XuggleVideo extends VideoAdapter {
    * @return the duration of the video in milliseconds, or -1 if not known
    */
   public double getDuration() {
-    int n = getFrameCount()-1;
-    if (n==0) return 100; // arbitrary duration for single-frame video!
-    // assume last and next-to-last frames have same duration
-    double delta = getFrameTime(n)-getFrameTime(n-1);
-    return getFrameTime(n)+delta;
+    return index.getDuration();
+  }
+
+  /**
+   * Determines if this video has a constant frame rate.
+   *
+   * @return true if all frame intervals are equal within one timebase unit
+   */
+  public boolean isConstantFrameRate() {
+    return index.isConstantRate();
+  }
+
+  /**
+   * Gets the mean, minimum and maximum frame intervals.
+   *
+   * @return double[] {mean, min, max} in milliseconds
+   */
+  public double[] getFrameIntervals() {
+    return new double[] {index.getMeanInterval(), index.getMinInterval(), index.getMaxInterval()};
+  }
+
+  /**
+   * Gets the first frame of each segment with a constant frame rate.
+   * A constant frame rate video has a single segment starting at frame 0.
+   *
+   * @return the segment start frame numbers
+   */
+  public int[] getFrameRateSegments() {
+    return index.getSegmentFrames();
   }
 
   /**
@@ -290,26 +387,22 @@ public class XuggleVideo extends VideoAdapter {
    */
   public void dispose() {
     super.dispose();
-    if (videoCoder!=null) {
-			videoCoder.close();
-			videoCoder.delete();
-			videoCoder = null;
+    if (reverseBuffer!=null) {
+    	reverseBuffer.clear();
+    	reverseBuffer = null;
     }
-    if (stream!=null) {
-			stream.delete();
-			stream = null;
+    if (source!=null) {
+    	source.release();
+    	source = null;
     }
-		if (picture!=null) {
-			picture.delete();
-			picture = null;
-			packet.delete();
-			packet = null;
-		}
-    if (container!=null) {
-			container.close();
-			container.delete();
-			container = null;
-	  }
+    XuggleNatives.closed(this);
+  }
+
+  /**
+   * Closes this video. Equivalent to dispose().
+   */
+  public void close() {
+  	dispose();
   }
   
   /**
@@ -330,6 +423,112 @@ public class XuggleVideo extends VideoAdapter {
   	return playSmoothly;
   }
 
+  /**
+   * Decodes a frame and passes its raw picture planes to a PictureReader.
+   * No color conversion or BufferedImage is involved. The planes are borrowed
+   * from the decoder and are valid only for the duration of the callback.
+   *
+   * @param frameNumber the frame number
+   * @param reader the reader
+   * @return true if the frame was decoded and read
+   */
+  public boolean readPicture(int frameNumber, PictureReader reader) {
+		if (frameNumber<0 || frameNumber>=index.getFrameCount()) {
+			return false;
+		}
+		XuggleDecoder decoder = leaseDecoder(frameNumber);
+		if (decoder==null) {
+			return false;
+		}
+		try {
+			return decoder.readPicture(frameNumber, reader);
+		} finally {
+			source.releaseDecoder(decoder);
+		}
+  }
+
+  /**
+   * Decodes a frame and copies one raw picture plane into a buffer. Rows are
+   * packed without padding, so the Y plane of a planar YUV picture (plane 0)
+   * occupies exactly width x height bytes.
+   *
+   * @param frameNumber the frame number
+   * @param plane the plane index (0 = Y for planar YUV formats)
+   * @param dest the destination buffer
+   * @return the number of bytes copied, or -1 if the frame or plane is unavailable
+   * @throws java.nio.BufferOverflowException if dest has insufficient space
+   */
+  public int copyPlane(int frameNumber, final int plane, final ByteBuffer dest) {
+  	final int[] copied = {-1};
+  	readPicture(frameNumber, new PictureReader() {
+			public void readPicture(int n, IVideoPicture pic, ByteBuffer[] planes, int[] lineSizes) {
+				if (plane<0 || plane>=planes.length) return;
+				IPixelFormat.Type type = pic.getPixelType();
+				int rowLength = XugglePlanes.getPlaneWidth(type, plane, pic.getWidth());
+				int rows = XugglePlanes.getPlaneHeight(type, plane, pic.getHeight());
+				ByteBuffer src = planes[plane];
+				for (int row = 0; row < rows; row++) {
+					int start = row*lineSizes[plane];
+					src.limit(start+rowLength).position(start);
+					dest.put(src);
+				}
+				copied[0] = rowLength*rows;
+			}
+  	});
+  	return copied[0];
+  }
+
+  /**
+   * Gets the number of times a decoder of this video has had to close and
+   * reopen its container because it could not seek back to the start.
+   *
+   * @return the reload count (for all views of the file)
+   */
+  public int getReloadCount() {
+  	return source==null? 0: source.getReloadCount();
+  }
+
+  /**
+   * Gets the number of bytes of non-video (eg audio) packets read and
+   * discarded by the decoders of this video.
+   *
+   * @return the byte count (for all views of the file)
+   */
+  public long getNonVideoBytesRead() {
+  	return source==null? 0: source.getNonVideoBytes();
+  }
+
+  /**
+   * Gets the time spent reading non-video packets. This is the time that
+   * would be saved if the container skipped all but the video stream.
+   *
+   * @return the time in milliseconds (for all views of the file)
+   */
+  public double getNonVideoReadTime() {
+  	return source==null? 0: source.getNonVideoNanos()/1000000.0;
+  }
+
+  /**
+   * Gets the native memory held by the picture conversions of all open
+   * decoders. Each decoder preallocates one conversion for the width, height
+   * and pixel format of its stream and replaces it only if these change.
+   *
+   * @return the byte count (for all videos)
+   */
+  public static long getConversionMemory() {
+  	return XuggleConversion.getTotalNativeBytes();
+  }
+
+  /**
+   * Gets the input through which this video is read. The input reports
+   * I/O byte and latency counters shared by all views of the file.
+   *
+   * @return the input, or null if the video is not read through an input
+   */
+  public XuggleInput getInput() {
+  	return source==null? null: source.getInput();
+  }
+
 //______________________________  private methods _________________________
 
   /**
@@ -350,7 +549,10 @@ public class XuggleVideo extends VideoAdapter {
    */
   private void continuePlaying() {
   	int n = getFrameNumber();
-  	if (n<getEndFrameNumber()) {
+  	if (reverse) {
+  		continuePlayingReverse(n);
+  	}
+  	else if (n<getEndFrameNumber()) {
     	long elapsedTime = System.currentTimeMillis()-systemStartPlayTime;
     	double frameTime = frameStartPlayTime+getRate()*elapsedTime;
     	int frameToPlay = getFrameNumberBefore(frameTime);
@@ -378,76 +580,51 @@ public class XuggleVideo extends VideoAdapter {
    * @param time the time in milliseconds
    * @return the frame number, or -1 if not found
    */
-	private int getFrameNumberBefore(double time) {
-		for (int i = 0; i < startTimes.length; i++) {
-			if (time < startTimes[i])
-				return i-1;
-		}
-		// if not found, see if specified time falls in last frame
-		int n = startTimes.length-1;
-    // assume last and next-to-last frames have same duration
-    double endTime = 2*startTimes[n]-startTimes[n-1];
-		if (time < endTime)
-			return n;
-		return -1;
+	int getFrameNumberBefore(double time) {
+		return index.getFrameNumberBefore(time);
 	}
 	
+  /**
+   * Plays the next frame backward, or loops or stops at the start frame.
+   *
+   * @param n the current frame number
+   */
+  private void continuePlayingReverse(int n) {
+  	if (n>getStartFrameNumber()) {
+    	int frameToPlay = n;
+    	while (frameToPlay>=n) {
+	    	long elapsedTime = System.currentTimeMillis()-systemStartPlayTime;
+	    	double frameTime = frameStartPlayTime-getRate()*elapsedTime;
+	    	frameToPlay = frameTime<0? -1: getFrameNumberBefore(frameTime);
+    	}
+    	setFrameNumber(Math.max(frameToPlay, getStartFrameNumber()));
+    } 
+  	else if(looping) {
+  		startPlayingAtFrame(getEndFrameNumber());
+    } 
+  	else {
+      stop();
+    }  	
+  }
+
   /**
    * Loads a video specified by name.
    *
    * @param fileName the video file name
    * @throws IOException
    */
-	@SuppressWarnings("deprecation")
 	private void load(String fileName) throws IOException {
     Resource res = ResourceLoader.getResource(fileName);
     if (res==null) {
     	throw new IOException("unable to create resource for "+fileName); //$NON-NLS-1$
     }    
-    // create and open a Xuggle container
+    // get the shared source for this video
     URL url = res.getURL();
     boolean isLocal = url.getProtocol().toLowerCase().indexOf("file")>-1; //$NON-NLS-1$
     String path = isLocal? res.getAbsolutePath(): url.toExternalForm();
     OSPLog.finest("Xuggle video loading "+path+" local?: "+isLocal); //$NON-NLS-1$ //$NON-NLS-2$
-  	container = IContainer.make();
-  	if (isLocal) {  // random access file handles non-ascii unicode characters
-	  	RandomAccessFile raf = new RandomAccessFile(path, "r"); //$NON-NLS-1$
-	    if (container.open(raf, IContainer.Type.READ, null) < 0) {
-				dispose();
-	      throw new IOException("unable to open "+fileName); //$NON-NLS-1$
-	    }
-  	}
-  	else if (container.open(path, IContainer.Type.READ, null) < 0) {
-			dispose();
-	    throw new IOException("unable to open "+fileName); //$NON-NLS-1$  		
-  	}
-    
-    // find the first video stream in the container
-    for (int i = 0; i < container.getNumStreams(); i++) {
-      IStream nextStream = container.getStream(i);
-      // get the pre-configured decoder that can decode this stream
-      IStreamCoder coder = nextStream.getStreamCoder();      
-      // get the type of stream from the coder's codec type
-      if (coder.getCodecType().equals(ICodec.Type.CODEC_TYPE_VIDEO)) {
-      	stream = nextStream;
-      	streamIndex = i;
-      	videoCoder = coder;
-      	timebase = stream.getTimeBase().copy();
-      	break;
-      }      
-    }
-    
-    // check that a video stream was found
-    if (streamIndex == -1) {
-			dispose();
-      throw new IOException("no video stream found in "+fileName); //$NON-NLS-1$
-    }
-    
-    // check that coder opens
-    if (videoCoder.open() < 0) {
-			dispose();
-      throw new IOException("unable to open video decoder for "+fileName); //$NON-NLS-1$
-    }
+    source = XuggleSource.getSource(path, isLocal);
+    XuggleNatives.opened(this);
     
     // set properties
     setProperty("name", XML.getName(fileName));         //$NON-NLS-1$
@@ -460,63 +637,138 @@ public class XuggleVideo extends VideoAdapter {
       setProperty("path", XML.getRelativePath(fileName)); //$NON-NLS-1$
     }
 
-    // set up frame data using temporary container
-		IContainer tempContainer = IContainer.make();   
-  	if (isLocal) {
-	  	RandomAccessFile tempRaf = new RandomAccessFile(path, "r"); //$NON-NLS-1$
-	    tempContainer.open(tempRaf, IContainer.Type.READ, null);
-  	}
-  	else {
-	    tempContainer.open(container.getURL(), IContainer.Type.READ, null); 		
-  	}
-    IStream tempStream = tempContainer.getStream(streamIndex);
-    IStreamCoder tempCoder = tempStream.getStreamCoder();
-    tempCoder.open();
-    
-    IVideoPicture tempPicture = IVideoPicture.make(tempCoder.getPixelType(),
-    		tempCoder.getWidth(), tempCoder.getHeight());
-    IPacket tempPacket = IPacket.make();
+    // set up frame data unless another view of this file has done so
+    // a cancelled build disposes of this video, so keep the source to unlock it
+    XuggleSource indexSource = source;
+    lockIndex(fileName);
+    try {
+    	index = indexSource.getIndex();
+    	if (index==null) {
+    		index = buildIndex(fileName);
+    		indexSource.setIndex(index);
+    	}
+    } finally {
+    	indexSource.indexLock.unlock();
+    }
+
+		// set initial video clip properties
+    frameCount = index.getFrameCount();
+    startFrameNumber = 0;
+    endFrameNumber = frameCount-1;
+
+    // load the initial image
+		BufferedImage img = getImage(0);
+		if (img==null) {
+			for (int i=1; i<frameCount; i++) {
+				img = getImage(i);
+				if (img!=null) break;
+			}
+		}
+		firePropertyChange("progress", fileName, null); //$NON-NLS-1$
+		stopFailDetectTimer();
+		if (img==null) {
+			dispose();
+			throw new IOException("No images"); //$NON-NLS-1$
+		}
+		setImage(img);
+  }
+  
+  /**
+   * Acquires the frame index lock of the source. While another view of the
+   * file builds the index the wait is checked for cancellation, so a
+   * cancelled open stops waiting within INDEX_WAIT_POLL ms. The other
+   * view's build itself is not cancelled.
+   *
+   * @param fileName the video file name
+   * @throws IOException if cancelled or interrupted while waiting
+   */
+	private void lockIndex(String fileName) throws IOException {
+		try {
+			while (!source.indexLock.tryLock(INDEX_WAIT_POLL, TimeUnit.MILLISECONDS)) {
+				if (isLoadCanceled()) {
+					stopFailDetectTimer();
+					firePropertyChange("progress", fileName, null); //$NON-NLS-1$
+					dispose();
+					throw new IOException("Canceled by user"); //$NON-NLS-1$
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			dispose();
+			throw new IOException("interrupted while waiting for the frame index"); //$NON-NLS-1$
+		}
+	}
+
+  /**
+   * Determines if loading has been cancelled, either for this video or by VideoIO.
+   *
+   * @return true if cancelled
+   */
+	private boolean isLoadCanceled() {
+		return VideoIO.isCanceled() || (loadCanceled!=null && loadCanceled.get());
+	}
+
+  /**
+   * Steps through a video with a temporary decoder to find all video frames.
+   *
+   * @param fileName the video file name
+   * @return the frame index
+   * @throws IOException
+   */
+	private XuggleFrameIndex buildIndex(String fileName) throws IOException {
+		XuggleDecoder temp;
+		try {
+			temp = source.createDecoder(fileName);
+		} catch (IOException ex) {
+			dispose();
+			throw ex;
+		}
+		XuggleFrameIndex newIndex = new XuggleFrameIndex();
+		// read before the decoder deletes its native timebase
+		double timebase = temp.timebase.getValue();
+		IRational rate = temp.stream.getFrameRate();
+		double frameRate = rate==null? 0: rate.getValue();
+		if (rate!=null) {
+			rate.delete();
+		}
+    IPacket tempPacket = temp.packet;
+    IVideoPicture tempPicture = temp.picture;
 		long keyTimeStamp = Long.MIN_VALUE;
-	  long startTimeStamp = Long.MIN_VALUE;
-		ArrayList<Double> seconds = new ArrayList<Double>();
+	  long lastDuration = 0;
 		firePropertyChange("progress", fileName, 0); //$NON-NLS-1$
 		frame = prevFrame = 0;		
-		failDetectTimer.start();		
+		if (failDetectTimer!=null) failDetectTimer.start();
 		// step thru container and find all video frames
-		while (tempContainer.readNextPacket(tempPacket)>=0) {
-			if (VideoIO.isCanceled()) {
-				failDetectTimer.stop();		
+		while (temp.readPacket()) {
+			if (isLoadCanceled()) {
+				stopFailDetectTimer();
 				firePropertyChange("progress", fileName, null); //$NON-NLS-1$
 				// clean up temporary objects
-				tempCoder.close();
-				tempCoder.delete();
-				tempStream.delete();
-				tempPicture.delete();
-				tempPacket.delete();
-				tempContainer.close();
-				tempContainer.delete();
+				temp.dispose();
 				dispose();
 				throw new IOException("Canceled by user"); //$NON-NLS-1$
 			}
-			if (isVideoPacket(tempPacket)) {
+			if (temp.isVideoPacket(tempPacket)) {
+				if (keyTimeStamp == Long.MIN_VALUE) {
+					newIndex.startPosition = tempPacket.getPosition();
+				}
 				if (keyTimeStamp == Long.MIN_VALUE || tempPacket.isKeyPacket()) {
 					keyTimeStamp = tempPacket.getTimeStamp();
+					if (tempPacket.getPosition() >= 0) {
+						newIndex.keyPositions.put(keyTimeStamp, tempPacket.getPosition());
+					}
 				}
 				int offset = 0;
 		    while(offset < tempPacket.getSize()) {
 		      // decode the packet into the picture
-		      int bytesDecoded = tempCoder.decodeVideo(tempPicture, tempPacket, offset);
+		      int bytesDecoded = temp.videoCoder.decodeVideo(tempPicture, tempPacket, offset);
 		      // check for errors
 		      if (bytesDecoded < 0)
 		      	break;
 		      offset += bytesDecoded;
 		      if (tempPicture.isComplete()) {
-						if (startTimeStamp == Long.MIN_VALUE) {
-							startTimeStamp = tempPacket.getTimeStamp();
-						}
-						frameTimeStamps.put(frame, tempPacket.getTimeStamp());
-						seconds.add((tempPacket.getTimeStamp()-startTimeStamp)*timebase.getValue());
-						keyTimeStamps.put(frame, keyTimeStamp);
+						newIndex.addFrame(tempPacket.getTimeStamp(), keyTimeStamp);
+						lastDuration = tempPacket.getDuration();
 						firePropertyChange("progress", fileName, frame); //$NON-NLS-1$
 						frame++;
 		      }
@@ -524,79 +776,30 @@ public class XuggleVideo extends VideoAdapter {
 			}
 		}
 		// clean up temporary objects
-		tempCoder.close();
-		tempCoder.delete();
-		tempStream.delete();
-		tempPicture.delete();
-		tempPacket.delete();
-		tempContainer.close();
-		tempContainer.delete();
+		temp.dispose();
 		
 		// throw IOException if no frames were loaded
-		if (frameTimeStamps.size()==0) {
+		if (newIndex.getFrameCount()==0) {
 			firePropertyChange("progress", fileName, null); //$NON-NLS-1$
-			failDetectTimer.stop();		
+			stopFailDetectTimer();
 			dispose();
 			throw new IOException("packets loaded but no complete picture"); //$NON-NLS-1$
 		}
 
-		// set initial video clip properties
-    frameCount = frameTimeStamps.size();
-    startFrameNumber = 0;
-    endFrameNumber = frameCount-1;
-    // create startTimes array
-    startTimes = new double[frameCount];
-    startTimes[0] = 0;
-    for(int i = 1; i<startTimes.length; i++) {
-      startTimes[i] = seconds.get(i)*1000;
-    }
+    // compute frame times, durations and frame rate statistics
+    newIndex.finish(timebase, lastDuration, frameRate);
+    OSPLog.finer(XML.getName(fileName)+": "+newIndex.getFrameCount()+" frames, constant rate " //$NON-NLS-1$ //$NON-NLS-2$
+    		+newIndex.isConstantRate()+", closed form "+newIndex.isClosedForm()); //$NON-NLS-1$
+    return newIndex;
+	}
 
-    // initialize packet, picture and image
-    picture = IVideoPicture.make(videoCoder.getPixelType(),
-        videoCoder.getWidth(), videoCoder.getHeight());
-  	packet = IPacket.make();
-		loadNextPacket();
-		BufferedImage img = getImage(0);
-		if (img==null) {
-			for (int i=1; i<frameTimeStamps.size(); i++) {
-				img = getImage(i);
-				if (img!=null) break;
-			}
-		}
-		firePropertyChange("progress", fileName, null); //$NON-NLS-1$
-		failDetectTimer.stop();		
-		if (img==null) {
-			dispose();
-			throw new IOException("No images"); //$NON-NLS-1$
-		}
-		setImage(img);
-  }
-  
   /**
-   * Reloads the current video.
-   *
-   * @throws IOException
+   * Stops the failure detection timer, if any.
    */
-  @SuppressWarnings("deprecation")
-	private void reload() throws IOException {
-  	String url = container.getURL();
-  	container.close();
-		videoCoder.close();
-		videoCoder.delete();		
-		stream.delete();
-    boolean isLocal = url.toLowerCase().indexOf("file:")>-1; //$NON-NLS-1$
-    String path = isLocal? ResourceLoader.getNonURIPath(url): url;
-  	container = IContainer.make();
-  	if (isLocal) {
-	  	RandomAccessFile raf = new RandomAccessFile(path, "r"); //$NON-NLS-1$
-	    container.open(raf, IContainer.Type.READ, null);
+  private void stopFailDetectTimer() {
+  	if (failDetectTimer!=null) {
+  		failDetectTimer.stop();
   	}
-  	else {
-	    container.open(path, IContainer.Type.READ, null);  		
-  	}    
-  	stream = container.getStream(streamIndex);
-  	videoCoder = stream.getStreamCoder();  
-    videoCoder.open();
   }
 
   /**
@@ -614,318 +817,132 @@ public class XuggleVideo extends VideoAdapter {
   }
 
   /**
-   * Determines if a packet is a key packet.
-   *
-   * @param packet the packet
-   * @return true if packet is a key in the video stream
-   */
-  private boolean isKeyPacket(IPacket packet) {
-		if (isVideoPacket(packet)
-				&& packet.isKeyPacket()) {
-			return true;
-		} 
-  	return false;
-  }
-  
-  /**
-   * Determines if a packet is a video packet.
-   *
-   * @param packet the packet
-   * @return true if packet is in the video stream
-   */
-  private boolean isVideoPacket(IPacket packet) {
-		if (packet.getStreamIndex() == streamIndex) {
-			return true;
-		} 
-  	return false;
-  }
-  
-  /**
-   * Returns the key packet with the specified timestamp.
-   *
-   * @param timestamp the timestamp in stream timebase units
-   * @return the packet, or null if none found
-   */
-  private IPacket getKeyPacket(long timestamp) {
-  	// compare requested timestamp with current packet
-  	long delta = timestamp-packet.getTimeStamp();
-  	// if delta is zero, return packet
-  	if (delta==0) {
-  		return packet;
-  	}
-  	// if delta is positive and short, step forward
-  	IRational timebase = packet.getTimeBase();
-  	int shortTime = timebase.getDenominator(); // one second
-  	if (delta>0 && delta<shortTime) {
-  		while (container.readNextPacket(packet)>=0) {
-  			if (isKeyPacket(packet)
-  					&& packet.getTimeStamp() == timestamp) {
-  				return packet;
-  			}
-  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
-  				delta = timestamp-packet.getTimeStamp();
-  				break;
-  			}
-  		}
-  	}
-  	// if delta is positive and long, seek forward
-  	if (delta>0 && container.seekKeyFrame(streamIndex,
-  			timestamp, timestamp, timestamp, 0)>=0) {
-  		while (container.readNextPacket(packet)>=0) {
-  			if (isKeyPacket(packet)
-  					&& packet.getTimeStamp() == timestamp) {
-  				return packet;
-  			} 
-  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
-  				delta = timestamp-packet.getTimeStamp();
-  				break;
-  			}
-      }  		
-  	}
-  	// if delta is negative, seek backward
-  	if (getFrameNumber(timestamp)==0) {
-  		resetContainer();
-  		return packet;
-  	}
-  	if (delta<0 && container.seekKeyFrame(streamIndex,
-  			timestamp, timestamp, timestamp, IContainer.SEEK_FLAG_BACKWARDS)>=0) {
-  		while (container.readNextPacket(packet)>=0) {
-  			if (isKeyPacket(packet) && isVideoPacket(packet)
-  					&& packet.getTimeStamp() == timestamp) {
-  				return packet;
-  			} 
-  			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
-  				delta = timestamp-packet.getTimeStamp();
-  				break;
-  			}
-      }  		
-  	}
-  	 
-  	// if all else fails, reopen container and step forward
-  	resetContainer();
-		while (container.readNextPacket(packet)>=0) {
-			if (isKeyPacket(packet)
-					&& packet.getTimeStamp() == timestamp) {
-				return packet;
-			} 
-			if (isVideoPacket(packet) && packet.getTimeStamp()>timestamp) {
-				break;
-			}
-    }  		
-  	
-  	// if still not found, return null
-  	return null;
-  }
-
-  /**
-   * Gets the key packet needed to display a specified frame.
+   * Leases a decoder from the source to read a specified frame.
    *
    * @param frameNumber the frame number
-   * @return the packet, or null if none found
+   * @return the decoder, or null if none could be opened
    */
-	private IPacket getKeyPacketForFrame(int frameNumber) {
-		long keyTimeStamp = keyTimeStamps.get(frameNumber);
-		return getKeyPacket(keyTimeStamp);
+	private XuggleDecoder leaseDecoder(int frameNumber) {
+		try {
+			return source.leaseDecoder(frameNumber, (String)getProperty("name")); //$NON-NLS-1$
+		} catch (IOException ex) {
+			OSPLog.warning(ex.getMessage());
+			return null;
+		}
 	}
-	
+
   /**
-   * Loads the Xuggle picture with all data needed to display a specified frame.
+   * Gets the BufferedImage for a specified frame.
    *
-   * @param frameNumber the frame number to load
-   * @return true if loaded successfully
+   * @param frameNumber the frame number
+   * @return the image, or null if failed to load
    */
-	private boolean loadPicture(int frameNumber) {
-		// check to see if seek is needed
-		long currentTS = packet.getTimeStamp();
-		long targetTS = getTimeStamp(frameNumber);
-		long keyTS = keyTimeStamps.get(frameNumber);
-		if (currentTS==targetTS && isVideoPacket(packet)) {
-			// frame is already loaded
-			return picture.isComplete();
+	BufferedImage getImage(int frameNumber) {
+		if (frameNumber<0 || frameNumber>=index.getFrameCount()) {
+			return null;
 		}
-		if (currentTS>=keyTS && currentTS<targetTS) {
-			// no need to seek--just step forward
-			if (loadNextPacket()) {
-				int n = getFrameNumber(packet);
-				while (n > -2 && n < frameNumber) {
-					if (loadNextPacket()) {
-						n = getFrameNumber(packet);
-					}
-					else return false;
-				}
-			}
-			else return false;
+		BufferedImage image = source.getCachedImage(frameNumber);
+		if (image!=null) {
+			return image;
 		}
-		else if (getKeyPacketForFrame(frameNumber)!=null) {
-			if (loadPacket(packet)) {
-				int n = getFrameNumber(packet);
-				while (n > -2 && n < frameNumber) {
-					if (loadNextPacket()) {
-						n = getFrameNumber(packet);
-					}
-					else return false;
-				}
+		XuggleDecoder decoder = leaseDecoder(frameNumber);
+		if (decoder==null) {
+			return null;
+		}
+		try {
+			if (!decoder.loadPicture(frameNumber)) {
+				return null;
 			}
-			else return false;
+	    // convert picture to buffered image and display
+			image = decoder.getBufferedImage();
+		} finally {
+			source.releaseDecoder(decoder);
 		}
-		return picture.isComplete();
-	}
-	
-  /**
-   * Gets the timestamp for a specified frame.
-   *
-   * @param frameNumber the frame number
-   * @return the timestamp in stream timebase units
-   */
-	private long getTimeStamp(int frameNumber) {
-		return frameTimeStamps.get(frameNumber);
-	}
-
-  /**
-   * Gets the frame number for a specified timestamp.
-   *
-   * @param timeStamp the timestamp in stream timebase units
-   * @return the frame number, or -1 if not found
-   */
-	private int getFrameNumber(long timeStamp) {
-		for (int i = 0; i < frameTimeStamps.size(); i++) {
-			long ts = frameTimeStamps.get(i);
-			if (ts == timeStamp)
-				return i;
+		if (image!=null) {
+			source.cacheImage(frameNumber, image);
+			// garbage collect to play smoothly--but slows down playback speed significantly!
+			if (playSmoothly)
+				System.gc();
 		}
-		return -1;
-	}
-	
-  /**
-   * Gets the frame number for a specified packet.
-   *
-   * @param packet the packet
-   * @return the frame number, or -2 if not a video packet
-   */
-	private int getFrameNumber(IPacket packet) {
-		if (packet.getStreamIndex() != streamIndex)
-			return -2;
-		return getFrameNumber(packet.getTimeStamp());
+		return image;
 	}
-	
+
   /**
-   * Gets the BufferedImage for a specified frame.
+   * Gets an image to display a frame while scrubbing: the cached frame if
+   * available, otherwise the key frame it follows.
    *
    * @param frameNumber the frame number
-   * @return the image, or null if failed to load
+   * @return the image, or null if unable to decode
    */
-	private BufferedImage getImage(int frameNumber) {
-		if (frameNumber<0 || frameNumber>=frameTimeStamps.size()) {
+	private BufferedImage getScrubImage(int frameNumber) {
+		if (frameNumber<0 || frameNumber>=index.getFrameCount()) {
 			return null;
 		}
-		if (loadPicture(frameNumber)) {
-	    // convert picture to buffered image and display
-	  	return getBufferedImage(picture);
+		BufferedImage image = source.getCachedImage(frameNumber);
+		if (image!=null) {
+			return image;
 		}
-		return null;
-	}
-	
-  /**
-   * Gets the BufferedImage for a specified Xuggle picture.
-   *
-   * @param picture the picture
-   * @return the image, or null if unable to resample
-   */
-	private BufferedImage getBufferedImage(IVideoPicture picture) {
-    // if needed, convert picture into BGR24 format
-		if (picture.getPixelType() != IPixelFormat.Type.BGR24) {
-			if (resampler == null) {
-	      resampler = IVideoResampler.make(
-	      		picture.getWidth(), picture.getHeight(), IPixelFormat.Type.BGR24,
-	      		picture.getWidth(), picture.getHeight(), picture.getPixelType());
-	      if (resampler == null) {
-	      	OSPLog.warning("Could not create color space resampler"); //$NON-NLS-1$
-	      	return null;
-	      }
+		long keyTimeStamp = index.getKeyTimeStamp(frameNumber);
+		image = source.getKeyImage(keyTimeStamp);
+		if (image!=null) {
+			return image;
+		}
+		XuggleDecoder decoder = leaseDecoder(frameNumber);
+		if (decoder==null) {
+			return null;
+		}
+		try {
+			if (!decoder.loadKeyPicture(frameNumber)) {
+				return null;
 			}
-      IVideoPicture newPic = IVideoPicture.make(resampler.getOutputPixelFormat(),
-          picture.getWidth(), picture.getHeight());
-      if (resampler.resample(newPic, picture) < 0
-      		|| newPic.getPixelType() != IPixelFormat.Type.BGR24) {
-      	OSPLog.warning("Could not encode video as BGR24"); //$NON-NLS-1$
-      	return null;
-      }
-      picture = newPic;
+			image = decoder.getBufferedImage();
+		} finally {
+			source.releaseDecoder(decoder);
 		}
-
-		// use IConverter to convert picture to buffered image
-		if (converter==null) {
-			ConverterFactory.Type type = ConverterFactory.findRegisteredConverter(
-					ConverterFactory.XUGGLER_BGR_24);	  	
-			converter = ConverterFactory.createConverter(type.getDescriptor(), picture);			
+		if (image!=null) {
+			source.cacheKeyImage(keyTimeStamp, image);
 		}
-		BufferedImage image = converter.toImage(picture);
-		// garbage collect to play smoothly--but slows down playback speed significantly!
-		if (playSmoothly)
-			System.gc();
-  	return image;		
+		return image;
 	}
 
   /**
-   * Loads the next video packet in the container into the current Xuggle picture.
+   * Gets an image for reverse playback from the GOP buffer.
    *
-   * @return true if successfully loaded
+   * @param frameNumber the frame number
+   * @return the image, or null if unable to decode
    */
-	private boolean loadNextPacket() {
-		while (container.readNextPacket(packet)>=0) {
-			if (isVideoPacket(packet)) {
-//				long timeStamp = packet.getTimeStamp();
-//				System.out.println("loading next packet at "+timeStamp+": "+packet.getSize());
-				return loadPacket(packet);
-			}
-    }
-		return false;	
-	}
-
-  /**
-   * Loads a video packet into the current Xuggle picture.
-   *
-   * @param packet the packet
-   * @return true if successfully loaded
-   */
-	private boolean loadPacket(IPacket packet) {
-		int offset = 0;
-		int size = packet.getSize();
-    while(offset < size) {
-      // decode the packet into the picture
-      int bytesDecoded = videoCoder.decodeVideo(picture, packet, offset);
-      // check for errors
-      if (bytesDecoded < 0)
-        return false;
-      
-      offset += bytesDecoded;
-      if (picture.isComplete()) {
-      	return true;
-      }
-    }
-    return true;
+	private BufferedImage getReverseImage(int frameNumber) {
+		if (frameNumber<0 || frameNumber>=index.getFrameCount()) {
+			return null;
+		}
+		BufferedImage image = source.getCachedImage(frameNumber);
+		if (image!=null) {
+			return image;
+		}
+		if (reverseBuffer==null) {
+			reverseBuffer = new XuggleGopBuffer(source, index, (String)getProperty("name")); //$NON-NLS-1$
+		}
+		return reverseBuffer.getImage(frameNumber);
 	}
 
   /**
-   * Resets the container to the beginning.
+   * An interface for reading the raw planes of decoded Xuggle pictures.
    */
-  private void resetContainer() {
-    // seek backwards--this will fail for streamed web videos
-    if (container.seekKeyFrame(-1, // stream index -1 ==> seek to microseconds
-        Long.MIN_VALUE, 0, Long.MAX_VALUE,
-        IContainer.SEEK_FLAG_BACKWARDS)>=0) {
-    	loadNextPacket();
-    }
-    else {
-	    try {
-				reload();
-				loadNextPacket();
-			} catch (IOException e) {
-		  	OSPLog.warning("Container could not be reset"); //$NON-NLS-1$   	
-			}
-    }
+  public interface PictureReader {
+
+    /**
+     * Reads the planes of a decoded picture. The planes are read-only views of
+     * native memory and must not be retained after this method returns.
+     *
+     * @param frameNumber the frame number
+     * @param picture the decoded picture
+     * @param planes the picture planes (Y, U and V for planar YUV formats)
+     * @param lineSizes the number of bytes per row, including padding, of each plane
+     */
+    public void readPicture(int frameNumber, IVideoPicture picture, ByteBuffer[] planes, int[] lineSizes);
+
   }
-  
+
   /**
    * Returns an XML.ObjectLoader to save and load XuggleVideo data.
    *
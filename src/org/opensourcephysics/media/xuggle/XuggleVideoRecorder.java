@@ -24,23 +24,28 @@
  */
 package org.opensourcephysics.media.xuggle;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
 import javax.swing.filechooser.FileFilter;
 
 import org.opensourcephysics.controls.OSPLog;
 import org.opensourcephysics.controls.XML;
 import org.opensourcephysics.media.core.ScratchVideoRecorder;
 import org.opensourcephysics.media.core.VideoFileFilter;
-import org.opensourcephysics.tools.ResourceLoader;
 
 import com.xuggle.xuggler.ICodec;
 import com.xuggle.xuggler.IContainer;
@@ -53,20 +58,30 @@ import com.xuggle.xuggler.IStream;
 import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
 import com.xuggle.xuggler.ICodec.ID;
-import com.xuggle.xuggler.video.ConverterFactory;
-import com.xuggle.xuggler.video.IConverter;
 
 /**
- * A class to record videos using the Xuggle video engine.
+ * A class to record videos using the Xuggle video engine. Closing a recorder
+ * discards the current video and deletes its native objects.
  */
-public class XuggleVideoRecorder extends ScratchVideoRecorder {
+public class XuggleVideoRecorder extends ScratchVideoRecorder implements AutoCloseable {
 
 	private IContainer outContainer;
 	private IStream outStream;
 	private IStreamCoder outStreamCoder;
-	private IConverter outConverter;
+	private XuggleYUVConverter yuvConverter;
 //	private IRational timebase = IRational.make(1, 9000);	
-	private Dimension converterDim;
+	private int keyFrameInterval = 10;
+	private BufferedImage appendImage; // reused to resize or convert appended images
+	// off-heap frame ring and live encoder thread, used when ringSlots>0
+	private int ringSlots;
+	private boolean dropWhenFull;
+	private XuggleFrameRing ring;
+	private Thread encoder;
+	private volatile Exception encoderError;
+	private long appendCount;
+	// raw frame spool, used when ringSlots==0
+	private XuggleFrameSpool spool;
+	private int segmentCount = 1;
 
 	/**
    * Constructs a XuggleVideoRecorder object.
@@ -76,17 +91,82 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
     super(type);
   }
 
+  /**
+   * Sets the number of frames in each group of pictures, ie the key frame interval.
+   *
+   * @param frames the key frame interval (1 for all key frames)
+   */
+  public void setKeyFrameInterval(int frames) {
+  	keyFrameInterval = Math.max(1, frames);
+  }
+
+  /**
+   * Sets the number of segments encoded in parallel when a spooled video is
+   * saved. Segments start on key frames and are encoded by separate coders,
+   * then their packets are copied into the video without re-encoding.
+   * Frame ring recordings are encoded live and are not segmented.
+   *
+   * @param segments the number of segments (1 to encode sequentially)
+   */
+  public void setEncodingSegments(int segments) {
+  	segmentCount = Math.max(1, segments);
+  }
+
+  /**
+   * Sets the number of off-heap frame slots used for live recording. With
+   * slots, appended frames are copied into a ring in native memory and
+   * encoded by a background thread instead of being saved as temp files.
+   * When the ring is full, append either waits for the encoder or drops the
+   * frame. Takes effect for the next video created.
+   *
+   * @param slots the number of frame slots, or 0 to use temp files
+   * @param drop true to drop frames when the ring is full, false to wait
+   */
+  public void setFrameRing(int slots, boolean drop) {
+  	ringSlots = Math.max(0, slots);
+  	dropWhenFull = drop;
+  }
+
+  /**
+   * Gets the number of frames dropped because the frame ring was full.
+   *
+   * @return the dropped frame count
+   */
+  public long getDroppedFrameCount() {
+  	return ring==null? 0: ring.getDroppedCount();
+  }
+
+  /**
+   * Gets the largest number of frames waiting in the frame ring at once.
+   *
+   * @return the maximum backlog
+   */
+  public int getMaxRingBacklog() {
+  	return ring==null? 0: ring.getMaxBacklog();
+  }
+
+  /**
+   * Gets the total time append has waited for the encoder when the frame
+   * ring was full.
+   *
+   * @return the wait time in milliseconds
+   */
+  public long getBackpressureTime() {
+  	return ring==null? 0: ring.getWaitNanos()/1000000;
+  }
+
   /**
    * Discards the current video and resets the recorder to a ready state.
    */
 	@Override
   public void reset() {
-    try {
-			closeStream();
-		} catch (IOException e) {}
-		if (outConverter!=null) {
-			outConverter.delete();
-			outConverter = null;
+		stopEncoder(true);
+		ring = null;
+		// the video is discarded, so no trailer is written
+		releaseStream();
+		if (yuvConverter!=null) {
+			yuvConverter.close();
+			yuvConverter = null;
 		}
     deleteTempFiles();
     super.reset();
@@ -94,15 +174,27 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
   }
 
   /**
-   * Called by the garbage collector when this recorder is no longer in use.
+   * Closes the frame spool and deletes the temp files.
    */
 	@Override
-  protected void finalize() {
+	protected void deleteTempFiles() {
+		if (spool!=null) {
+			spool.close();
+			spool = null;
+		}
+		super.deleteTempFiles();
+	}
+
+  /**
+   * Closes this recorder. Equivalent to reset().
+   */
+  public void close() {
   	reset();
   }
   
   /**
-   * Appends a frame to the current video by saving the image in a tempFile.
+   * Appends a frame to the current video by writing its raw pixels to the
+   * frame spool, or by queuing it in the frame ring for live encoding.
    *
    * @param image the image to append
    * @return true if image successfully saved
@@ -115,28 +207,40 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 			dim = new Dimension(w, h);
 		}
 		// resize and/or convert to BufferedImage if needed
-		if (dim.width!=w || dim.height!=h || !(image instanceof BufferedImage)) {
-			BufferedImage img = new BufferedImage(dim.width, dim.height, BufferedImage.TYPE_INT_RGB);			
+		if (dim.width!=w || dim.height!=h || !(image instanceof BufferedImage)
+				|| ((BufferedImage)image).getType()!=BufferedImage.TYPE_3BYTE_BGR) {
+			if (appendImage==null || appendImage.getWidth()!=dim.width || appendImage.getHeight()!=dim.height) {
+				appendImage = new BufferedImage(dim.width, dim.height, BufferedImage.TYPE_3BYTE_BGR);
+			}
 			int x = (dim.width-w)/2;
 			int y = (dim.height-h)/2;
-			img.getGraphics().drawImage(image, x, y, null);
-			image = img;
+			Graphics g = appendImage.getGraphics();
+			g.setColor(Color.BLACK);
+			g.fillRect(0, 0, dim.width, dim.height);
+			g.drawImage(image, x, y, null);
+			g.dispose();
+			image = appendImage;
 		}
 		BufferedImage source = (BufferedImage)image;
-		String fileName = tempFileBasePath+"_"+tempFiles.size()+".tmp"; //$NON-NLS-1$ //$NON-NLS-2$
+		if (ringSlots>0) {
+			return appendToRing(source);
+		}
     try {
-			ImageIO.write(source, tempFileType, new BufferedOutputStream(
-			    new FileOutputStream(fileName)));
-		} catch (Exception e) {
+    	if (spool==null) {
+    		File spoolFile = new File(tempFileBasePath+"_frames.tmp"); //$NON-NLS-1$
+    		spool = new XuggleFrameSpool(spoolFile, dim.width, dim.height);
+  			synchronized (tempFiles) {
+  				tempFiles.add(spoolFile);
+  			}
+    	}
+    	if (!spool.accepts(source)) {
+    		return false;
+    	}
+    	spool.append(source);
+		} catch (IOException e) {
+			OSPLog.warning("unable to spool frame: "+e); //$NON-NLS-1$
 			return false;
 		}
-		File imageFile = new File(fileName);
-		if (imageFile.exists()) {
-			synchronized (tempFiles) {
-				tempFiles.add(imageFile);
-			}
-			imageFile.deleteOnExit();
-		}
 		return true;
 	}
 
@@ -151,33 +255,40 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 		if (!hasContent || !(fileFilter instanceof VideoFileFilter))
 			return;
 		
+		// frames in the ring have been encoded live: finish and close
+		if (ring!=null) {
+			stopEncoder(false);
+			closeStream();
+			if (encoderError!=null) {
+				throw new IOException("live encoding failed: "+encoderError); //$NON-NLS-1$
+			}
+			OSPLog.finer("Xuggle recorded "+ring.getAcceptedCount()+" frames, dropped " //$NON-NLS-1$ //$NON-NLS-2$
+					+ring.getDroppedCount()+", max backlog "+ring.getMaxBacklog()); //$NON-NLS-1$
+			hasContent = false;
+			canRecord = false;
+			return;
+		}
+
 		// set container format
-		IContainerFormat format = IContainerFormat.make();
-		VideoFileFilter xuggleFilter = (VideoFileFilter)fileFilter;
-		format.setOutputFormat(xuggleFilter.getContainerType(), null, null);
+		IContainerFormat format = getOutputFormat();
 		
 		// set the pixel type--may depend on selected fileFilter?
 		IPixelFormat.Type pixelType = IPixelFormat.Type.YUV420P;
 
-		// open the output stream, write the images, close the stream
-		openStream(format, pixelType);
-		
-		// open temp images and encode
-		long timeStamp = 0;
-		int n=0;
-		synchronized (tempFiles) {
-			for (File imageFile: tempFiles) {
-				if (!imageFile.exists())
-					throw new IOException("temp image file not found"); //$NON-NLS-1$
-				BufferedImage image = ResourceLoader.getBufferedImage(imageFile.getAbsolutePath(), BufferedImage.TYPE_3BYTE_BGR);
-				if (image==null || image.getType()!=BufferedImage.TYPE_3BYTE_BGR) {
-					throw new IOException("unable to load temp image file"); //$NON-NLS-1$
-				}
-				
-				encodeImage(image, pixelType, timeStamp);
-				n++;
-				timeStamp = Math.round(n*frameDuration*1000); // frameDuration in ms, timestamp in microsec
+		if (spool==null)
+			throw new IOException("frame spool not found"); //$NON-NLS-1$
+		try {
+			if (segmentCount>1 && spool.getFrameCount()>=2*keyFrameInterval) {
+				// encode segments in parallel and copy them into the output stream
+				encodeSegments(format, pixelType);
+			}
+			else {
+				// open the output stream and encode the spooled frames
+				openStream(format, pixelType);
+				encodeSpool();
 			}
+		} finally {
+			XuggleNatives.release(format);
 		}
 		closeStream();
 		deleteTempFiles();
@@ -197,8 +308,291 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 		} catch (Exception e) {
 			return false;
 		}
+		stopEncoder(true);
+		ring = null;
+		if (spool!=null) {
+			spool.close();
+			spool = null;
+		}
+		encoderError = null;
+		appendCount = 0;
 		return true;
 	}
+
+  /**
+   * Gets the container format of the video type. The caller releases it.
+   *
+   * @return the format
+   */
+	private IContainerFormat getOutputFormat() {
+		IContainerFormat format = XuggleNatives.track(IContainerFormat.make());
+		VideoFileFilter xuggleFilter = (VideoFileFilter)videoType.getDefaultFileFilter();
+		format.setOutputFormat(xuggleFilter.getContainerType(), null, null);
+		return format;
+	}
+
+  /**
+   * Encodes all spooled frames to the open output stream.
+   *
+   * @throws IOException
+   */
+	private void encodeSpool() throws IOException {
+		XuggleYUVConverter converter = getYUVConverter(dim.width, dim.height);
+		long timeStamp = 0;
+		for (int n = 0; n < spool.getFrameCount(); ) {
+			encodePicture(converter.toPicture(spool.getFrame(n), timeStamp));
+			n++;
+			timeStamp = Math.round(n*frameDuration*1000); // frameDuration in ms, timestamp in microsec
+		}
+		flushEncoder();
+	}
+
+  /**
+   * Encodes the spooled frames as GOP-aligned segments in parallel, then copies
+   * the segment packets into the output stream. Each segment has its own
+   * encoder, so codecs configured by a global header (extradata) are encoded
+   * sequentially instead: the segments' parameter sets would not match the
+   * header written by the output coder.
+   *
+   * @param format the container format
+   * @param pixelType the pixel type
+   * @throws IOException
+   */
+	private void encodeSegments(IContainerFormat format, final IPixelFormat.Type pixelType) 
+			throws IOException {
+		if (!openStream(format, pixelType)) {
+			throw new IOException("unable to open output stream"); //$NON-NLS-1$
+		}
+		if (format.getOutputFlag(IContainerFormat.Flags.FLAG_GLOBALHEADER)
+				|| outStreamCoder.getFlag(IStreamCoder.Flags.FLAG_GLOBAL_HEADER)
+				|| outStreamCoder.getExtraDataSize()>0) {
+			encodeSpool();
+			return;
+		}
+		int n = spool.getFrameCount();
+		int gops = (n+keyFrameInterval-1)/keyFrameInterval;
+		int count = Math.min(segmentCount, gops);
+		final int[] bounds = new int[count+1];
+		File[] files = new File[count];
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int i = 0; i < count; i++) {
+			bounds[i+1] = Math.min(n, (int)((long)gops*(i+1)/count)*keyFrameInterval);
+			final File file = files[i] = new File(tempFileBasePath+"_segment"+i+"." //$NON-NLS-1$ //$NON-NLS-2$
+					+videoType.getDefaultExtension());
+			file.deleteOnExit();
+			synchronized (tempFiles) {
+				tempFiles.add(file);
+			}
+			final int segment = i;
+			tasks.add(new Callable<Boolean>() {
+				public Boolean call() throws IOException {
+					return encodeSegment(file, bounds[segment], bounds[segment+1], pixelType);
+				}
+			});
+		}
+		int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Boolean> result: executor.invokeAll(tasks)) {
+				if (!result.get()) {
+					throw new IOException("unable to encode segment"); //$NON-NLS-1$
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException("segment encoding interrupted"); //$NON-NLS-1$
+		} catch (ExecutionException ex) {
+			throw new IOException("unable to encode segment: "+ex.getCause()); //$NON-NLS-1$
+		} finally {
+			executor.shutdown();
+		}
+		for (int i = 0; i < count; i++) {
+			copySegment(files[i], bounds[i]);
+		}
+	}
+
+  /**
+   * Encodes a range of spooled frames to a segment file with its own coder.
+   *
+   * @param file the segment file
+   * @param first the first frame
+   * @param end the frame after the last
+   * @param pixelType the pixel type
+   * @return true if encoded
+   * @throws IOException
+   */
+	private boolean encodeSegment(File file, int first, int end, IPixelFormat.Type pixelType) 
+			throws IOException {
+		// a recorder with the same settings writes the segment
+		XuggleVideoRecorder segment = new XuggleVideoRecorder((XuggleVideoType)videoType);
+		segment.dim = dim;
+		segment.frameDuration = frameDuration;
+		segment.keyFrameInterval = keyFrameInterval;
+		segment.scratchFile = file;
+		IContainerFormat format = getOutputFormat();
+		try {
+			if (!segment.openStream(format, pixelType)) {
+				return false;
+			}
+			XuggleYUVConverter converter = segment.getYUVConverter(dim.width, dim.height);
+			for (int i = first; i < end; i++) {
+				// frameDuration in ms, timestamp in microsec
+				long timeStamp = Math.round(i*frameDuration*1000);
+				segment.encodePicture(converter.toPicture(spool.getFrame(i), timeStamp));
+			}
+			segment.flushEncoder();
+			segment.closeStream();
+			return true;
+		} finally {
+			if (segment.yuvConverter!=null) {
+				segment.yuvConverter.close();
+				segment.yuvConverter = null;
+			}
+			// releases the stream if encoding failed
+			segment.releaseStream();
+			segment.scratchFile = null;
+			XuggleNatives.release(format);
+		}
+	}
+
+  /**
+   * Copies the packets of a segment file into the output stream, restamped
+   * so the segment starts at its first frame.
+   *
+   * @param file the segment file
+   * @param firstFrame the first frame of the segment
+   * @throws IOException
+   */
+	private void copySegment(File file, int firstFrame) throws IOException {
+		IContainer in = XuggleNatives.track(IContainer.make());
+		if (in.open(file.getAbsolutePath(), IContainer.Type.READ, null)<0) {
+			XuggleNatives.release(in);
+			throw new IOException("unable to open segment "+file.getName()); //$NON-NLS-1$
+		}
+		// output coder timebase is the inverse frame rate, so timestamps count frames
+		IRational timebase = XuggleNatives.track(outStreamCoder.getTimeBase());
+		double frameRate = 1/timebase.getValue();
+		IPacket packet = XuggleNatives.track(IPacket.make());
+		long shift = Long.MIN_VALUE;
+		try {
+			while (in.readNextPacket(packet)>=0) {
+				IRational packetBase = packet.getTimeBase();
+				double seconds = packetBase.getValue();
+				packetBase.delete();
+				long pts = Math.round(packet.getPts()*seconds*frameRate);
+				long dts = Math.round(packet.getDts()*seconds*frameRate);
+				if (shift==Long.MIN_VALUE) {
+					shift = firstFrame-pts;
+				}
+				packet.setPts(pts+shift);
+				packet.setDts(dts+shift);
+				packet.setDuration(Math.round(packet.getDuration()*seconds*frameRate));
+				packet.setTimeBase(timebase);
+				packet.setStreamIndex(0);
+				if (outContainer.writePacket(packet, true)<0) {
+					throw new IOException("could not copy segment packet"); //$NON-NLS-1$
+				}
+			}
+		} finally {
+			in.close();
+			XuggleNatives.release(in);
+			XuggleNatives.release(packet);
+			XuggleNatives.release(timebase);
+		}
+	}
+
+  /**
+   * Appends a frame to the ring, creating the ring and starting the encoder
+   * with the first frame.
+   *
+   * @param image the image to append (TYPE_3BYTE_BGR)
+   * @return true if the frame was queued
+   */
+	private boolean appendToRing(BufferedImage image) {
+		if (ring==null) {
+			if (!(videoType.getDefaultFileFilter() instanceof VideoFileFilter)) {
+				return false;
+			}
+			ring = new XuggleFrameRing(ringSlots, dim.width, dim.height, dropWhenFull);
+			if (!startEncoder()) {
+				ring = null;
+				return false;
+			}
+		}
+		if (encoderError!=null || !ring.accepts(image)) {
+			return false;
+		}
+		return ring.put(image, appendCount++);
+	}
+
+  /**
+   * Opens the output stream and starts a thread that encodes frames from the ring.
+   *
+   * @return true if started
+   */
+	private boolean startEncoder() {
+		final IPixelFormat.Type pixelType = IPixelFormat.Type.YUV420P;
+		IContainerFormat format = getOutputFormat();
+		try {
+			if (!openStream(format, pixelType)) {
+				releaseStream();
+				return false;
+			}
+		} catch (IOException ex) {
+			releaseStream();
+			return false;
+		} finally {
+			XuggleNatives.release(format);
+		}
+		final XuggleFrameRing frames = ring;
+		encoder = new Thread(new Runnable() {
+			public void run() {
+				XuggleYUVConverter converter = getYUVConverter(frames.getWidth(), frames.getHeight());
+				try {
+					int slot = 0;
+					while (!Thread.currentThread().isInterrupted() && (slot = frames.take())>-1) {
+						// frameDuration in ms, timestamp in microsec
+						long timeStamp = Math.round(frames.getFrameNumber(slot)*frameDuration*1000);
+						// the converter copies the slot, so it can be released before encoding
+						IVideoPicture picture = converter.toPicture(frames.getSlot(slot), timeStamp);
+						frames.release();
+						encodePicture(picture);
+					}
+					if (slot==-1) {
+						// the ring was closed: encode the frames the coder holds back
+						flushEncoder();
+					}
+				} catch (InterruptedException ex) {
+				} catch (CancellationException ex) {
+					// interrupted during conversion: the frames are discarded
+				} catch (Exception ex) {
+					encoderError = ex;
+					frames.close();
+				}
+			}
+		}, "XuggleVideoRecorder encoder"); //$NON-NLS-1$
+		encoder.setDaemon(true);
+		encoder.start();
+		return true;
+	}
+
+  /**
+   * Closes the ring and waits for the encoder to finish.
+   *
+   * @param discard true to discard queued frames, false to encode them
+   */
+	private void stopEncoder(boolean discard) {
+		if (encoder==null) return;
+		ring.close();
+		if (discard) {
+			encoder.interrupt();
+		}
+		try {
+			encoder.join();
+		} catch (InterruptedException ex) {
+			encoder.interrupt();
+		}
+		encoder = null;
+	}
 	
   /**
    * Opens/initializes the output stream using a specified Xuggle format.
@@ -210,17 +604,18 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 	@SuppressWarnings("deprecation")
 	private boolean openStream(IContainerFormat format, IPixelFormat.Type pixelType) 
 			throws IOException {
-		outContainer = IContainer.make();
+		XuggleNatives.opened(this);
+		outContainer = XuggleNatives.track(IContainer.make());
 		if (outContainer.open(scratchFile.getAbsolutePath(), IContainer.Type.WRITE, format)<0) {
 			OSPLog.finer("Xuggle could not open output file"); //$NON-NLS-1$
 			return false;
 		}	
 		String typicalName = "typical."+videoType.getDefaultExtension(); //$NON-NLS-1$
 		ICodec codec = ICodec.guessEncodingCodec(format, null, typicalName, null, ICodec.Type.CODEC_TYPE_VIDEO);
-		outStream = outContainer.addNewStream(0);
+		outStream = XuggleNatives.track(outContainer.addNewStream(0));
 				
-		outStreamCoder = outStream.getStreamCoder();	
-		outStreamCoder.setNumPicturesInGroupOfPictures(10);		
+		outStreamCoder = XuggleNatives.track(outStream.getStreamCoder());	
+		outStreamCoder.setNumPicturesInGroupOfPictures(keyFrameInterval);		
   	outStreamCoder.setCodec(codec);
 		outStreamCoder.setBitRate(250000);
 //		outStreamCoder.setBitRateTolerance(9000);	
@@ -235,20 +630,25 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 //		outStreamCoder.setFlag(IStreamCoder.Flags.FLAG_QSCALE, true);
 //		outStreamCoder.setGlobalQuality(0);
 
-		IRational frameRate = IRational.make(1000/frameDuration);
+		IRational frameRate = XuggleNatives.track(IRational.make(1000/frameDuration));
 		boolean hasTimeBaseLimit = typicalName.endsWith(".avi") || typicalName.endsWith(".mpg"); //$NON-NLS-1$ //$NON-NLS-2$
 		if (hasTimeBaseLimit && frameRate.getDenominator()>65535) { // maximum timebase = 2^16 - 1
 			double fps = 1000/frameDuration;
 			int denom = 63000; // 7 x 9000
 			int numer = Math.round(Math.round(fps*denom));
-			frameRate = IRational.make(numer, denom);
+			XuggleNatives.release(frameRate);
+			frameRate = XuggleNatives.track(IRational.make(numer, denom));
 		}
 		
 		
 		outStreamCoder.setFrameRate(frameRate);
 		// set time base to inverse of frame rate
-    outStreamCoder.setTimeBase(IRational.make(frameRate.getDenominator(),
-        frameRate.getNumerator()));
+		IRational timebase = IRational.make(frameRate.getDenominator(),
+        frameRate.getNumerator());
+    outStreamCoder.setTimeBase(timebase);
+    // the coder keeps its own references
+    timebase.delete();
+    XuggleNatives.release(frameRate);
 //    // some codecs require experimental mode to be set? (and all accept it??)    
 //    if (outStreamCoder.setStandardsCompliance(IStreamCoder.CodecStandardsCompliance.COMPLIANCE_EXPERIMENTAL) < 0) {
 //			OSPLog.finer("Xuggle could not set compliance mode to experimental"); //$NON-NLS-1$
@@ -268,32 +668,40 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
 	}
 	
   /**
-   * Encodes an image and writes it to the output stream.
+   * Encodes a picture and writes it to the output stream.
    * 
-   * @param image the image to encode (must be BufferedImage.TYPE_3BYTE_BGR)
-   * @param pixelType the pixel type
-   * @param timeStamp the time stamp in microseconds
+   * @param picture the picture to encode, or null to flush a delayed packet
+   * @return true if a packet was written
    * @throws IOException
    */
-	private boolean encodeImage(BufferedImage image, IPixelFormat.Type pixelType, long timeStamp) 
-			throws IOException {
-		// convert image to xuggle picture
-		IVideoPicture picture = getPicture(image, pixelType, timeStamp);
-		if (picture==null)
-			throw new RuntimeException("could not convert to picture"); //$NON-NLS-1$
+	private boolean encodePicture(IVideoPicture picture) throws IOException {
 		// make a packet
-		IPacket packet = IPacket.make();
-		if (outStreamCoder.encodeVideo(packet, picture, 0) < 0) {
-			throw new RuntimeException("could not encode video"); //$NON-NLS-1$
-		}
-		if (packet.isComplete()) {
-			boolean forceInterleave = true;
-			if (outContainer.writePacket(packet, forceInterleave) < 0) {
-				throw new RuntimeException("could not save packet to container"); //$NON-NLS-1$
+		IPacket packet = XuggleNatives.track(IPacket.make());
+		try {
+			if (outStreamCoder.encodeVideo(packet, picture, 0) < 0) {
+				throw new RuntimeException("could not encode video"); //$NON-NLS-1$
 			}
-			return true;
+			if (packet.isComplete()) {
+				boolean forceInterleave = true;
+				if (outContainer.writePacket(packet, forceInterleave) < 0) {
+					throw new RuntimeException("could not save packet to container"); //$NON-NLS-1$
+				}
+				return true;
+			}
+			return false;
+		} finally {
+			XuggleNatives.release(packet);
 		}
-		return false;		
+	}
+	
+  /**
+   * Writes the packets held back by an encoder with frame delay, so the
+   * stream ends on its last frame.
+   * 
+   * @throws IOException
+   */
+	private void flushEncoder() throws IOException {
+		while (encodePicture(null)) {}
 	}
 	
   /**
@@ -303,66 +711,51 @@ public class XuggleVideoRecorder extends ScratchVideoRecorder {
    */
 	private void closeStream() throws IOException {
     if (outContainer!=null) {
-    	if (outContainer.writeTrailer() < 0) {
-    		throw new RuntimeException("could not write trailer to output file"); //$NON-NLS-1$
+    	try {
+	    	if (outContainer.writeTrailer() < 0) {
+	    		throw new RuntimeException("could not write trailer to output file"); //$NON-NLS-1$
+	    	}
+    	} finally {
+    		releaseStream();
     	}
-    	outStreamCoder.close();
-    	outContainer.close();
-//    	outStreamCoder.delete();
-//    	outStream.delete();
-//    	outContainer.delete();
-    	outContainer = null;
-    	outStreamCoder = null;
-    	outStream = null;
     }
 	}
 
   /**
-   * Converts a bgr source image to a xuggle picture.
-   *
-   * @param bgrImage the source image (must be type TYPE_3BYTE_BGR)
-   * @param pixelType the pixel type
-   * @param timeStamp the timestamp in microseconds
-   * @return the xuggle picture
+   * Closes the output stream without writing a trailer and deletes its
+   * native objects.
    */
-	private IVideoPicture getPicture(BufferedImage bgrImage, IPixelFormat.Type pixelType, long timeStamp) {
-		
-		IVideoPicture picture = null;
-		try {
-			IConverter converter = getConverter(bgrImage, pixelType);
-			picture = converter.toPicture(bgrImage, timeStamp);
-			picture.setQuality(0);		
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		} catch (Error err) {
-			err.printStackTrace();
+	private void releaseStream() {
+		if (outStreamCoder!=null) {
+			outStreamCoder.close();
 		}
-		return picture;
-	 }
-	
+		if (outContainer!=null) {
+			outContainer.close();
+		}
+		XuggleNatives.release(outStreamCoder);
+		XuggleNatives.release(outStream);
+		XuggleNatives.release(outContainer);
+		outContainer = null;
+		outStreamCoder = null;
+		outStream = null;
+		XuggleNatives.closed(this);
+	}
+
   /**
-   * Gets the converter for converting images to pictures. 
+   * Gets the pure Java converter for converting BGR frames to YUV420P pictures.
    *
-   * @param bgrImage the source image (must be type TYPE_3BYTE_BGR)
-   * @param pixelType the desired pixel type
+   * @param w the frame width
+   * @param h the frame height
+   * @return the converter
    */
-	private IConverter getConverter(BufferedImage bgrImage, IPixelFormat.Type pixelType){
-		int w = bgrImage.getWidth();
-		int h = bgrImage.getHeight();
-		if (converterDim==null) {
-			converterDim = new Dimension(w, h);
-		}
-		if (outConverter==null || w!=converterDim.width || h!=converterDim.height
-				|| outConverter.getPictureType()!= pixelType) {
-			try {
-				outConverter = ConverterFactory.createConverter(bgrImage, pixelType);
-				converterDim = new Dimension(w, h);
-			} catch(UnsupportedOperationException e){
-				System.err.println(e.getMessage());
-				e.printStackTrace();
+	private synchronized XuggleYUVConverter getYUVConverter(int w, int h) {
+		if (yuvConverter==null || !yuvConverter.accepts(w, h)) {
+			if (yuvConverter!=null) {
+				yuvConverter.close();
 			}
+			yuvConverter = new XuggleYUVConverter(w, h);
 		}
-		return outConverter;
+		return yuvConverter;
 	}
 	
 	/**
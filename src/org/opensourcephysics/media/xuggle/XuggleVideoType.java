@@ -28,6 +28,15 @@ import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.opensourcephysics.controls.OSPLog;
 import org.opensourcephysics.media.core.MediaRes;
@@ -51,6 +60,9 @@ public class XuggleVideoType implements VideoType {
   protected static boolean isXuggleAvailable = true;
   protected boolean recordable = true;
   
+  private static ExecutorService openExecutor;
+  private static ScheduledExecutorService openTimer;
+  
   static {
   	errorListener = new PropertyChangeListener() {
     	public void propertyChange(PropertyChangeEvent e) {
@@ -113,6 +125,118 @@ public class XuggleVideoType implements VideoType {
     }
   }
 
+  /**
+   * Opens a named video asynchronously on a shared executor bounded by the
+   * number of processors.
+   *
+   * @param name the name of the video
+   * @param listener a listener for "progress" events while loading (may be null)
+   * @param timeout the maximum time to wait in milliseconds, or 0 for no limit
+   * @return a future that completes with the video
+   * @see #getVideoAsync(String, PropertyChangeListener, long, Executor)
+   */
+  public CompletableFuture<Video> getVideoAsync(String name,
+  		PropertyChangeListener listener, long timeout) {
+  	return getVideoAsync(name, listener, timeout, getOpenExecutor());
+  }
+
+  /**
+   * Opens a named video asynchronously. Cancelling the returned future, or
+   * exceeding the timeout, cancels only this open: the frame scan stops and
+   * the video is discarded. Other opens and the global VideoIO cancel flag are
+   * unaffected. If another open of the same file is building the frame index,
+   * a cancelled open stops waiting for it within XuggleVideo.INDEX_WAIT_POLL ms
+   * but that build runs to completion. The video is opened without the Tracker progress dialog hooks,
+   * so callers report progress through the listener.
+   *
+   * @param name the name of the video
+   * @param listener a listener for "progress" events while loading (may be null)
+   * @param timeout the maximum time to wait in milliseconds, or 0 for no limit
+   * @param executor the executor that opens the video
+   * @return a future that completes with the video
+   */
+  public CompletableFuture<Video> getVideoAsync(final String name,
+  		final PropertyChangeListener listener, long timeout, Executor executor) {
+  	final AtomicBoolean canceled = new AtomicBoolean();
+  	final CompletableFuture<Video> future = new CompletableFuture<Video>() {
+  		@Override
+  		public boolean cancel(boolean mayInterruptIfRunning) {
+  			canceled.set(true);
+  			return super.cancel(mayInterruptIfRunning);
+  		}
+  	};
+  	executor.execute(new Runnable() {
+  		public void run() {
+  			if (future.isDone()) return;
+  	    try {
+  	    	Video video = new XuggleVideo(name, false, listener, canceled);
+  	      video.setProperty("video_type", XuggleVideoType.this); //$NON-NLS-1$
+  	      if (!future.complete(video)) {
+  	      	// cancelled or timed out after the scan finished
+  	      	video.dispose();
+  	      }
+  	    } catch(Throwable ex) {
+  	    	OSPLog.fine(getDescription()+": "+ex.getMessage()); //$NON-NLS-1$
+  	    	future.completeExceptionally(ex);
+  	    }
+  		}
+  	});
+  	if (timeout>0) {
+  		getOpenTimer().schedule(new Runnable() {
+  			public void run() {
+  				if (future.isDone()) return;
+  				canceled.set(true);
+  				future.completeExceptionally(new TimeoutException(
+  						"open timed out: "+name)); //$NON-NLS-1$
+  			}
+  		}, timeout, TimeUnit.MILLISECONDS);
+  	}
+  	return future;
+  }
+
+  /**
+   * Gets the shared executor for asynchronous opens.
+   *
+   * @return the executor
+   */
+  private static synchronized ExecutorService getOpenExecutor() {
+  	if (openExecutor==null) {
+  		int n = Math.max(1, Runtime.getRuntime().availableProcessors());
+  		openExecutor = Executors.newFixedThreadPool(n, new OpenThreadFactory("XuggleVideo open")); //$NON-NLS-1$
+  	}
+  	return openExecutor;
+  }
+
+  /**
+   * Gets the shared timer that enforces open timeouts.
+   *
+   * @return the timer
+   */
+  private static synchronized ScheduledExecutorService getOpenTimer() {
+  	if (openTimer==null) {
+  		openTimer = Executors.newSingleThreadScheduledExecutor(new OpenThreadFactory("XuggleVideo open timeout")); //$NON-NLS-1$
+  	}
+  	return openTimer;
+  }
+
+  /**
+   * A factory for the daemon threads used by asynchronous opens.
+   */
+  private static class OpenThreadFactory implements ThreadFactory {
+  	
+  	String name;
+  	
+  	OpenThreadFactory(String name) {
+  		this.name = name;
+  	}
+  	
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+  }
+
   /**
    * Reports whether this xuggle type can record videos
    *
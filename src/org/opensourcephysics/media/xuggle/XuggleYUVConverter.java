@@ -0,0 +1,243 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.xuggle.ferry.IBuffer;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Converts BGR24 raster bytes to a YUV420P picture in pure Java, without the
+ * intermediate picture and resample of the Xuggle IConverter. The picture is
+ * reused for every frame. Rows are converted in bands of row pairs in
+ * parallel, and the inner loops are simple array loops the JIT can unroll
+ * and vectorize. Coefficients are the ITU-R BT.601 limited range integer
+ * approximations used by libswscale.
+ */
+class XuggleYUVConverter implements AutoCloseable {
+
+	// minimum number of rows per parallel band
+	static final int MIN_BAND_ROWS = 32;
+
+	private int width, height, chromaWidth, chromaHeight;
+	private IVideoPicture picture;
+	private byte[] bgr, y, u, v;
+	private int bands;
+
+  /**
+   * Creates a converter for a frame size.
+   *
+   * @param w the frame width
+   * @param h the frame height
+   */
+  XuggleYUVConverter(int w, int h) {
+  	width = w;
+  	height = h;
+  	chromaWidth = (w+1)/2;
+  	chromaHeight = (h+1)/2;
+  	picture = XuggleNatives.track(IVideoPicture.make(IPixelFormat.Type.YUV420P, w, h));
+  	bgr = new byte[w*h*3];
+  	y = new byte[w*h];
+  	u = new byte[chromaWidth*chromaHeight];
+  	v = new byte[chromaWidth*chromaHeight];
+  	int cores = Runtime.getRuntime().availableProcessors();
+  	bands = Math.max(1, Math.min(cores, h/MIN_BAND_ROWS));
+  }
+
+  /**
+   * Determines if this converter handles a frame size.
+   *
+   * @param w the frame width
+   * @param h the frame height
+   * @return true if the size matches
+   */
+  boolean accepts(int w, int h) {
+  	return w==width && h==height;
+  }
+
+  /**
+   * Converts a TYPE_3BYTE_BGR image.
+   *
+   * @param image the image
+   * @param timeStamp the timestamp in microseconds
+   * @return the reused picture
+   */
+  IVideoPicture toPicture(BufferedImage image, long timeStamp) {
+  	byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+  	return toPicture(data, timeStamp);
+  }
+
+  /**
+   * Converts BGR bytes held in a buffer, eg a frame ring slot or spool window.
+   *
+   * @param src the BGR bytes (width x height x 3 remaining)
+   * @param timeStamp the timestamp in microseconds
+   * @return the reused picture
+   */
+  IVideoPicture toPicture(ByteBuffer src, long timeStamp) {
+  	src.duplicate().get(bgr);
+  	return toPicture(bgr, timeStamp);
+  }
+
+  /**
+   * Converts BGR bytes.
+   *
+   * @param src the BGR bytes (width x height x 3)
+   * @param timeStamp the timestamp in microseconds
+   * @return the reused picture
+   * @throws CancellationException if interrupted, since the picture is then
+   *   only partly converted. The interrupt status is kept.
+   */
+  IVideoPicture toPicture(final byte[] src, long timeStamp) {
+  	if (bands==1) {
+  		convertRows(src, 0, chromaHeight);
+  	}
+  	else {
+  		// bands of chroma rows, ie of luma row pairs
+  		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+  		for (int i = 0; i < bands; i++) {
+  			final int start = i*chromaHeight/bands;
+  			final int end = (i+1)*chromaHeight/bands;
+  			tasks.add(new Callable<Object>() {
+					public Object call() {
+						convertRows(src, start, end);
+						return null;
+					}
+  			});
+  		}
+  		try {
+  			for (Future<Object> f: ForkJoinPool.commonPool().invokeAll(tasks)) {
+  				f.get();
+  			}
+  		} catch (InterruptedException ex) {
+  			Thread.currentThread().interrupt();
+  			throw new CancellationException("picture conversion interrupted"); //$NON-NLS-1$
+  		} catch (ExecutionException ex) {
+  			throw new RuntimeException(ex.getCause());
+  		}
+  	}
+  	writePlanes();
+  	picture.setComplete(true, IPixelFormat.Type.YUV420P, width, height, timeStamp);
+  	picture.setQuality(0);
+  	return picture;
+  }
+
+  /**
+   * Frees the native picture.
+   */
+  public void close() {
+  	XuggleNatives.release(picture);
+  	picture = null;
+  }
+
+  /**
+   * Converts the luma row pairs of a band of chroma rows.
+   *
+   * @param src the BGR bytes
+   * @param start the first chroma row
+   * @param end the chroma row after the last
+   */
+  private void convertRows(byte[] src, int start, int end) {
+  	int w = width, stride = 3*w;
+  	for (int cy = start; cy < end; cy++) {
+  		int row0 = 2*cy;
+  		int row1 = Math.min(row0+1, height-1);
+  		// luma of both rows
+  		lumaRow(src, row0*stride, row0*w, w);
+  		if (row1!=row0) {
+  			lumaRow(src, row1*stride, row1*w, w);
+  		}
+  		// chroma from 2x2 averages
+  		int s0 = row0*stride, s1 = row1*stride, c = cy*chromaWidth;
+  		for (int cx = 0; cx < chromaWidth; cx++) {
+  			int x0 = 6*cx, x1 = Math.min(6*cx+3, stride-3);
+  			int b = (src[s0+x0]&0xff)+(src[s0+x1]&0xff)+(src[s1+x0]&0xff)+(src[s1+x1]&0xff);
+  			int g = (src[s0+x0+1]&0xff)+(src[s0+x1+1]&0xff)+(src[s1+x0+1]&0xff)+(src[s1+x1+1]&0xff);
+  			int r = (src[s0+x0+2]&0xff)+(src[s0+x1+2]&0xff)+(src[s1+x0+2]&0xff)+(src[s1+x1+2]&0xff);
+  			// sums of four pixels: shift by 2 more
+  			u[c+cx] = (byte)(((-38*r-74*g+112*b+512)>>10)+128);
+  			v[c+cx] = (byte)(((112*r-94*g-18*b+512)>>10)+128);
+  		}
+  	}
+  }
+
+  /**
+   * Converts one row of BGR pixels to luma.
+   *
+   * @param src the BGR bytes
+   * @param s the offset of the row in src
+   * @param d the offset of the row in the luma plane
+   * @param w the row width in pixels
+   */
+  private void lumaRow(byte[] src, int s, int d, int w) {
+  	byte[] dest = y;
+  	for (int x = 0; x < w; x++, s += 3) {
+  		int b = src[s]&0xff, g = src[s+1]&0xff, r = src[s+2]&0xff;
+  		dest[d+x] = (byte)(((66*r+129*g+25*b+128)>>8)+16);
+  	}
+  }
+
+  /**
+   * Copies the planes into the picture buffer, allowing for row padding.
+   */
+  private void writePlanes() {
+  	IBuffer buffer = picture.getData();
+  	try {
+  		ByteBuffer data = buffer.getByteBuffer(0, buffer.getBufferSize());
+  		byte[][] planes = {y, u, v};
+  		int offset = 0;
+  		for (int i = 0; i < 3; i++) {
+  			int lineSize = picture.getDataLineSize(i);
+  			int w = i==0? width: chromaWidth;
+  			int h = i==0? height: chromaHeight;
+  			if (lineSize==w) {
+  				data.position(offset);
+  				data.put(planes[i], 0, w*h);
+  			}
+  			else {
+  				for (int row = 0; row < h; row++) {
+  					data.position(offset+row*lineSize);
+  					data.put(planes[i], row*w, w);
+  				}
+  			}
+  			offset += lineSize*h;
+  		}
+  	} finally {
+  		buffer.delete();
+  	}
+  }
+
+}
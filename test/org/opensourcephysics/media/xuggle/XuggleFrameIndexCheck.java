@@ -0,0 +1,73 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+/**
+ * Checks the closed form mapping of a synthetic constant frame rate index:
+ * frame to timestamp to frame, and frame to time to frame. Also checks that
+ * the last frame lasts one interval when its packet duration is unknown.
+ */
+public class XuggleFrameIndexCheck {
+
+  /**
+   * Runs the check and prints the number of failures.
+   *
+   * @param args [frames [interval]]
+   */
+  public static void main(String[] args) {
+  	int frames = args.length>0? Integer.parseInt(args[0]): 100;
+  	long step = args.length>1? Long.parseLong(args[1]): 512;
+  	XuggleFrameIndex index = new XuggleFrameIndex();
+  	for (int i = 0; i < frames; i++) {
+  		long ts = 1000+i*step;
+  		index.addFrame(ts, ts);
+  	}
+  	index.finish(1/12800.0, step, 0);
+  	int failures = 0;
+  	for (int i = 0; i < frames; i++) {
+  		long ts = index.getTimeStamp(i);
+  		double time = index.getFrameTime(i);
+  		if (ts!=1000+i*step || index.getFrameNumber(ts)!=i
+  				|| index.getFrameNumberBefore(time)!=i) {
+  			System.out.println("frame "+i+": ts "+ts+" time "+time); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  			failures++;
+  		}
+  	}
+  	// last frame without a packet duration lasts as long as the previous
+  	XuggleFrameIndex unknown = new XuggleFrameIndex();
+  	for (int i = 0; i < frames; i++) {
+  		long ts = 1000+i*step;
+  		unknown.addFrame(ts, ts);
+  	}
+  	unknown.finish(1/12800.0, 0, 0);
+  	if (frames>1 && Math.abs(unknown.getDuration()-index.getDuration())>1e-9) {
+  		System.out.println("duration "+unknown.getDuration()+" != "+index.getDuration()); //$NON-NLS-1$ //$NON-NLS-2$
+  		failures++;
+  	}
+  	System.out.println("closed form "+index.isClosedForm()+", "+failures+" failures"); //$NON-NLS-1$ //$NON-NLS-2$
+  	System.exit(failures==0? 0: 1);
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+
+/**
+ * Checks range reads against a local HTTP server that serves a synthetic
+ * file of several blocks: reads it in order and at random positions and
+ * compares every byte, then checks that each block was fetched only once.
+ */
+public class XuggleHttpInputCheck {
+
+  /**
+   * Runs the check and prints the request count and number of failures.
+   *
+   * @param args [length in bytes]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+  	final byte[] data = new byte[args.length>0? Integer.parseInt(args[0]):
+  			5*XuggleHttpInput.BLOCK_SIZE/2+17];
+  	for (int i = 0; i < data.length; i++) {
+  		data[i] = (byte)(i*31+i/7);
+  	}
+  	final AtomicInteger requests = new AtomicInteger();
+  	HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0); //$NON-NLS-1$
+  	server.createContext("/", new HttpHandler() { //$NON-NLS-1$
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				// Range: bytes=start-end
+				String range = exchange.getRequestHeaders().getFirst("Range"); //$NON-NLS-1$
+				String[] bounds = range.substring(range.indexOf('=')+1).split("-"); //$NON-NLS-1$
+				int start = Integer.parseInt(bounds[0]);
+				int end = Math.min(data.length-1, Integer.parseInt(bounds[1]));
+				exchange.getResponseHeaders().set("Content-Range", //$NON-NLS-1$
+						"bytes "+start+"-"+end+"/"+data.length); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, end-start+1);
+				OutputStream out = exchange.getResponseBody();
+				out.write(data, start, end-start+1);
+				out.close();
+			}
+  	});
+  	server.start();
+  	int failures = 0;
+  	XuggleHttpInput input = XuggleHttpInput.create("http://127.0.0.1:" //$NON-NLS-1$
+  			+server.getAddress().getPort()+"/video.mp4"); //$NON-NLS-1$
+  	try {
+  		if (input==null) {
+  			System.out.println("range requests not detected"); //$NON-NLS-1$
+  			System.exit(1);
+  		}
+  		IURLProtocolHandler handler = input.createHandler();
+  		handler.open(null, IURLProtocolHandler.URL_RDONLY_MODE);
+  		if (handler.seek(0, IURLProtocolHandler.SEEK_SIZE)!=data.length) failures++;
+  		// sequential read
+  		byte[] buf = new byte[10000];
+  		int pos = 0, n;
+  		while ((n = handler.read(buf, buf.length))>0) {
+  			for (int i = 0; i < n; i++) {
+  				if (buf[i]!=data[pos+i]) failures++;
+  			}
+  			pos += n;
+  		}
+  		if (pos!=data.length) failures++;
+  		// random reads
+  		Random random = new Random(1);
+  		for (int k = 0; k < 200; k++) {
+  			int offset = random.nextInt(data.length);
+  			handler.seek(offset, IURLProtocolHandler.SEEK_SET);
+  			n = handler.read(buf, 1+random.nextInt(buf.length));
+  			for (int i = 0; i < n; i++) {
+  				if (buf[i]!=data[offset+i]) failures++;
+  			}
+  		}
+  		handler.close();
+  		// one probe plus one request per block
+  		int blocks = (data.length+XuggleHttpInput.BLOCK_SIZE-1)/XuggleHttpInput.BLOCK_SIZE;
+  		if (requests.get()!=blocks+1) failures++;
+  		System.out.println(data.length+" bytes in "+blocks+" blocks, " //$NON-NLS-1$ //$NON-NLS-2$
+  				+requests+" requests, "+input.getCachedBytes()+" bytes cached, " //$NON-NLS-1$ //$NON-NLS-2$
+  				+failures+" failures"); //$NON-NLS-1$
+  	} finally {
+  		if (input!=null) input.close();
+  		server.stop(0);
+  	}
+  	System.exit(failures==0? 0: 1);
+  }
+
+}
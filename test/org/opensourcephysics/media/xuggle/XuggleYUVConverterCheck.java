@@ -0,0 +1,76 @@
+/*
+ * The org.opensourcephysics.media.xuggle package provides Xuggle
+ * services including implementations of the Video and VideoRecorder interfaces.
+ *
+ * Copyright (c) 2017  Douglas Brown and Wolfgang Christian.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * For additional information and documentation on Open Source Physics,
+ * please see <https://www.compadre.org/osp/>.
+ */
+package org.opensourcephysics.media.xuggle;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * Benchmarks XuggleYUVConverter against the Xuggle IConverter.
+ */
+public class XuggleYUVConverterCheck {
+
+  /**
+   * Runs the benchmark and prints the conversion time per frame.
+   *
+   * @param args [width height [frames]]
+   */
+  public static void main(String[] args) {
+  	int w = args.length>1? Integer.parseInt(args[0]): 1920;
+  	int h = args.length>1? Integer.parseInt(args[1]): 1080;
+  	int frames = args.length>2? Integer.parseInt(args[2]): 200;
+  	BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+  	byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+  	for (int i = 0; i < data.length; i++) {
+  		data[i] = (byte)(i*7+i/3);
+  	}
+  	IConverter converter = ConverterFactory.createConverter(image, IPixelFormat.Type.YUV420P);
+  	XuggleYUVConverter yuv = new XuggleYUVConverter(w, h);
+  	// warm up both paths, then time
+  	for (int i = 0; i < 20; i++) {
+  		converter.toPicture(image, i).delete();
+  		yuv.toPicture(image, i);
+  	}
+  	long t0 = System.nanoTime();
+  	for (int i = 0; i < frames; i++) {
+  		converter.toPicture(image, i).delete();
+  	}
+  	long t1 = System.nanoTime();
+  	for (int i = 0; i < frames; i++) {
+  		yuv.toPicture(image, i);
+  	}
+  	long t2 = System.nanoTime();
+  	System.out.println(w+"x"+h+" x "+frames+" frames: IConverter " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  			+(t1-t0)/1000/frames+" us/frame, XuggleYUVConverter " //$NON-NLS-1$
+  			+(t2-t1)/1000/frames+" us/frame"); //$NON-NLS-1$
+  	converter.delete();
+  	yuv.close();
+  }
+
+}